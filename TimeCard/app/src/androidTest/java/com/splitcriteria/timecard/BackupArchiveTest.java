@@ -0,0 +1,168 @@
+package com.splitcriteria.timecard;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Instrumentation test of the backup segment format, which is written and read back
+ * the way BackupService and RestoreService do.
+ */
+@RunWith(AndroidJUnit4.class)
+public class BackupArchiveTest {
+
+    private static final String FILE_NAME = "archive_test.tcb";
+    // Spans several compressed blocks, the last of them partly filled
+    private static final int DATA_SIZE = 200 * 1024 + 123;
+
+    private File mFile;
+    private byte[] mData;
+
+    @Before
+    public void setUp() throws Exception {
+        Context context = InstrumentationRegistry.getTargetContext();
+        mFile = new File(context.getCacheDir(), FILE_NAME);
+        mFile.delete();
+        // Half random, half repeated, so the blocks are both compressible and not
+        mData = new byte[DATA_SIZE];
+        new Random(42).nextBytes(mData);
+        Arrays.fill(mData, DATA_SIZE / 2, DATA_SIZE, (byte) 'x');
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mFile.delete();
+    }
+
+    private void writeSegment(BackupArchive.Segment segment, byte[] data, boolean append)
+            throws IOException {
+        FileChannel out = new FileOutputStream(mFile, append).getChannel();
+        try {
+            BackupArchive.SegmentOutputStream stream =
+                    new BackupArchive.SegmentOutputStream(out, segment);
+            stream.write(data);
+            stream.close();
+        } finally {
+            out.close();
+        }
+    }
+
+    private byte[] readSegment(FileChannel in, BackupArchive.Segment expected)
+            throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(BackupArchive.HEADER_SIZE);
+        assertTrue(BackupArchive.readFully(in, header));
+        header.flip();
+        BackupArchive.Segment segment = BackupArchive.parseHeader(header);
+        assertNotNull(segment);
+        assertEquals(expected.type, segment.type);
+        assertEquals(ProjectData.DATABASE_VERSION, segment.schemaVersion);
+        assertEquals(expected.pageSize, segment.pageSize);
+        assertEquals(expected.fromSequence, segment.fromSequence);
+        assertEquals(expected.toSequence, segment.toSequence);
+        assertEquals(expected.length, segment.length);
+        InputStream stream = new BackupArchive.SegmentInputStream(in, segment, header);
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        try {
+            byte[] buffer = new byte[8192];
+            int bytesRead;
+            while ((bytesRead = stream.read(buffer)) > 0) {
+                data.write(buffer, 0, bytesRead);
+            }
+        } finally {
+            stream.close();
+        }
+        return data.toByteArray();
+    }
+
+    private byte[] readOnlySegment(BackupArchive.Segment expected) throws IOException {
+        FileChannel in = new FileInputStream(mFile).getChannel();
+        try {
+            return readSegment(in, expected);
+        } finally {
+            in.close();
+        }
+    }
+
+    @Test
+    public void segmentsRoundTrip() throws Exception {
+        BackupArchive.Segment base = new BackupArchive.Segment(
+                BackupArchive.SEGMENT_BASE, 4096, 7, 7, mData.length);
+        BackupArchive.Segment delta = new BackupArchive.Segment(
+                BackupArchive.SEGMENT_DELTA, 0, 7, 9, 3);
+        writeSegment(base, mData, false);
+        writeSegment(delta, new byte[] {1, 2, 3}, true);
+        FileChannel in = new FileInputStream(mFile).getChannel();
+        try {
+            assertArrayEquals(mData, readSegment(in, base));
+            assertArrayEquals(new byte[] {1, 2, 3}, readSegment(in, delta));
+            // Nothing follows the last segment
+            assertFalse(BackupArchive.readFully(in, ByteBuffer.allocate(1)));
+        } finally {
+            in.close();
+        }
+    }
+
+    @Test(expected = BackupArchive.CorruptBackupException.class)
+    public void corruptBlockIsDetected() throws Exception {
+        BackupArchive.Segment base = new BackupArchive.Segment(
+                BackupArchive.SEGMENT_BASE, 4096, 1, 1, mData.length);
+        writeSegment(base, mData, false);
+        // Flip a byte of the first block's compressed data
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        try {
+            long position = BackupArchive.HEADER_SIZE + 100;
+            file.seek(position);
+            int b = file.read();
+            file.seek(position);
+            file.write(b ^ 0xFF);
+        } finally {
+            file.close();
+        }
+        readOnlySegment(base);
+    }
+
+    @Test(expected = EOFException.class)
+    public void truncatedSegmentIsDetected() throws Exception {
+        BackupArchive.Segment base = new BackupArchive.Segment(
+                BackupArchive.SEGMENT_BASE, 4096, 1, 1, mData.length);
+        writeSegment(base, mData, false);
+        // Cut the segment off partway through its digest, as an interrupted write would
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        try {
+            file.setLength(file.length() - 10);
+        } finally {
+            file.close();
+        }
+        readOnlySegment(base);
+    }
+
+    @Test
+    public void databaseFilesAreRecognised() throws Exception {
+        ByteBuffer header = ByteBuffer.allocate(BackupArchive.HEADER_SIZE);
+        header.put("SQLite format 3\u0000".getBytes("US-ASCII"));
+        header.position(0);
+        assertTrue(BackupArchive.isDatabaseFile(header));
+        header.position(0);
+        assertNull(BackupArchive.parseHeader(header));
+    }
+}
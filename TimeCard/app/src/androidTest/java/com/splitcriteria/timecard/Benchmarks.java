@@ -0,0 +1,81 @@
+package com.splitcriteria.timecard;
+
+import android.os.Debug;
+import android.util.Log;
+
+import java.util.Locale;
+
+/**
+ * Timing for the instrumented benchmarks. An operation is run a number of times after a
+ * warm up, and the wall and CPU time per operation are logged under TAG, so the results
+ * can be read from logcat after running connectedAndroidTest.
+ */
+class Benchmarks {
+
+    static final String TAG = "TimecardBenchmark";
+
+    interface Operation {
+        void run(int iteration) throws Exception;
+    }
+
+    static class Result {
+        int iterations;
+        long wallNanos;
+        // The CPU time of the calling thread, or negative if it isn't available
+        long cpuNanos;
+
+        double wallMicrosPerOperation() {
+            return wallNanos / 1000.0 / iterations;
+        }
+
+        double cpuMicrosPerOperation() {
+            return cpuNanos / 1000.0 / iterations;
+        }
+    }
+
+    /**
+     * Runs an operation, first to warm up and then to time it
+     *
+     * @param warmUp        the number of untimed runs
+     * @param iterations    the number of timed runs
+     * @param operation     the operation, which is passed the number of each run
+     * @return  the timings of the timed runs
+     * @throws Exception    if the operation fails
+     */
+    static Result measure(int warmUp, int iterations, Operation operation) throws Exception {
+        for (int i = 0; i < warmUp; i++) {
+            operation.run(i);
+        }
+        Result result = new Result();
+        result.iterations = iterations;
+        long cpuStart = Debug.threadCpuTimeNanos();
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            operation.run(i);
+        }
+        result.wallNanos = System.nanoTime() - start;
+        result.cpuNanos = cpuStart < 0 ? -1 : Debug.threadCpuTimeNanos() - cpuStart;
+        return result;
+    }
+
+    /**
+     * Logs the timings of a benchmark
+     *
+     * @param name      what was measured
+     * @param result    the timings
+     */
+    static void report(String name, Result result) {
+        Log.i(TAG, String.format(Locale.US, "%s: %d runs, %.2f us/run wall, %.2f us/run cpu",
+                                 name, result.iterations, result.wallMicrosPerOperation(),
+                                 result.cpuMicrosPerOperation()));
+    }
+
+    /**
+     * Logs a line of benchmark output which isn't a per-operation timing
+     *
+     * @param message   the message
+     */
+    static void report(String message) {
+        Log.i(TAG, message);
+    }
+}
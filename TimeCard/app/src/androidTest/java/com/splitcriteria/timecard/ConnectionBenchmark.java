@@ -0,0 +1,132 @@
+package com.splitcriteria.timecard;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.*;
+
+/**
+ * Benchmark of the per-operation cost of ProjectData on the shared connection, compared
+ * with opening and closing a connection for every operation as ProjectData used to.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ConnectionBenchmark {
+
+    private static final String DATABASE_NAME = "connection_benchmark.db";
+    private static final String PROJECT = "project";
+    private static final int OPERATIONS = 1000;
+    private static final int WARM_UP = 100;
+
+    private Context mContext;
+    private String mPath;
+
+    @Before
+    public void setUp() throws Exception {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mContext.deleteDatabase(DATABASE_NAME);
+        mPath = mContext.getDatabasePath(DATABASE_NAME).getPath();
+        ProjectData projectData = new ProjectData(mContext, DATABASE_NAME);
+        assertTrue(projectData.addProject(PROJECT));
+        for (int i = 0; i < 100; i++) {
+            assertTrue(projectData.clockIn(PROJECT, Integer.toString(i)));
+            assertTrue(projectData.clockOut(PROJECT) >= 0);
+        }
+        projectData.close(mContext);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        DatabaseHolder.close(DATABASE_NAME);
+        ProjectData.invalidateCache();
+        mContext.deleteDatabase(DATABASE_NAME);
+    }
+
+    /**
+     * Reads a project's statistics on its own connection, which is opened and closed
+     * around the query
+     */
+    private void readStatisticsOnNewConnection() {
+        SQLiteDatabase database = SQLiteDatabase.openDatabase(mPath, null,
+                SQLiteDatabase.OPEN_READWRITE);
+        try {
+            Cursor cursor = database.rawQuery(
+                    "SELECT s.* FROM project_stats s " +
+                    "JOIN projects p ON p.rowid=s.project_id WHERE p.name=?;",
+                    new String[] {PROJECT});
+            try {
+                assertTrue(cursor.moveToFirst());
+            } finally {
+                cursor.close();
+            }
+        } finally {
+            database.close();
+        }
+    }
+
+    @Test
+    public void openAndClose() throws Exception {
+        Benchmarks.report("open and close, shared connection",
+                Benchmarks.measure(WARM_UP, OPERATIONS, new Benchmarks.Operation() {
+                    @Override
+                    public void run(int iteration) {
+                        new ProjectData(mContext, DATABASE_NAME).close(mContext);
+                    }
+                }));
+        // Let the shared connection close, so it isn't open alongside the new ones
+        assertTrue(DatabaseHolder.close(DATABASE_NAME));
+        Benchmarks.report("open and close, new connection",
+                Benchmarks.measure(WARM_UP, OPERATIONS, new Benchmarks.Operation() {
+                    @Override
+                    public void run(int iteration) {
+                        SQLiteDatabase.openDatabase(mPath, null,
+                                SQLiteDatabase.OPEN_READWRITE).close();
+                    }
+                }));
+    }
+
+    @Test
+    public void readStatistics() throws Exception {
+        Benchmarks.report("read statistics, shared connection",
+                Benchmarks.measure(WARM_UP, OPERATIONS, new Benchmarks.Operation() {
+                    @Override
+                    public void run(int iteration) {
+                        ProjectData projectData = new ProjectData(mContext, DATABASE_NAME);
+                        assertNotNull(projectData.getStatistics(PROJECT));
+                        projectData.close(mContext);
+                    }
+                }));
+        assertTrue(DatabaseHolder.close(DATABASE_NAME));
+        Benchmarks.report("read statistics, new connection",
+                Benchmarks.measure(WARM_UP, OPERATIONS, new Benchmarks.Operation() {
+                    @Override
+                    public void run(int iteration) {
+                        readStatisticsOnNewConnection();
+                    }
+                }));
+    }
+
+    @Test
+    public void clockInAndOut() throws Exception {
+        // As ProjectReceiver does it, with a new ProjectData for each broadcast
+        Benchmarks.report("clock in and out, shared connection",
+                Benchmarks.measure(WARM_UP, OPERATIONS, new Benchmarks.Operation() {
+                    @Override
+                    public void run(int iteration) {
+                        ProjectData projectData = new ProjectData(mContext, DATABASE_NAME);
+                        assertTrue(projectData.clockIn(PROJECT, null));
+                        projectData.close(mContext);
+                        projectData = new ProjectData(mContext, DATABASE_NAME);
+                        assertTrue(projectData.clockOut(PROJECT) >= 0);
+                        projectData.close(mContext);
+                    }
+                }));
+    }
+}
@@ -0,0 +1,165 @@
+package com.splitcriteria.timecard;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Benchmark of ProjectData.exists() with 10, 1,000 and 10,000 projects. The cached name
+ * lookup is compared with a lookup through the UNIQUE name index, and with the scan of
+ * every project name which exists() used to do.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ExistsBenchmark {
+
+    private static final String DATABASE_NAME = "exists_benchmark.db";
+    private static final int LOOKUPS = 10000;
+    private static final int WARM_UP = 1000;
+    // The number of project names read by the timed scans, which bounds their run time
+    private static final int SCANNED_NAMES = 100000;
+
+    private Context mContext;
+    private ProjectData mProjectData;
+    private SQLiteDatabase mDatabase;
+
+    @Before
+    public void setUp() throws Exception {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mContext.deleteDatabase(DATABASE_NAME);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (mDatabase != null) {
+            mDatabase.close();
+        }
+        if (mProjectData != null) {
+            mProjectData.close(mContext);
+        }
+        DatabaseHolder.close(DATABASE_NAME);
+        ProjectData.invalidateCache();
+        mContext.deleteDatabase(DATABASE_NAME);
+    }
+
+    /**
+     * Creates the database and inserts the projects directly, which is much quicker than
+     * adding them one at a time through ProjectData
+     *
+     * @param count the number of projects
+     */
+    private void createProjects(int count) {
+        new ProjectData(mContext, DATABASE_NAME).close(mContext);
+        assertTrue(DatabaseHolder.close(DATABASE_NAME));
+        SQLiteDatabase database = SQLiteDatabase.openDatabase(
+                mContext.getDatabasePath(DATABASE_NAME).getPath(), null,
+                SQLiteDatabase.OPEN_READWRITE);
+        try {
+            database.beginTransaction();
+            try {
+                ContentValues cv = new ContentValues();
+                for (int i = 0; i < count; i++) {
+                    cv.put("name", "project " + i);
+                    cv.put("display_name", "project " + i);
+                    database.insert("projects", null, cv);
+                }
+                database.setTransactionSuccessful();
+            } finally {
+                database.endTransaction();
+            }
+        } finally {
+            database.close();
+        }
+        ProjectData.invalidateCache();
+        mProjectData = new ProjectData(mContext, DATABASE_NAME);
+        mDatabase = SQLiteDatabase.openDatabase(
+                mContext.getDatabasePath(DATABASE_NAME).getPath(), null,
+                SQLiteDatabase.OPEN_READONLY);
+    }
+
+    /**
+     * The existence check exists() used to do, reading every project name
+     */
+    private boolean scanExists(String project) {
+        List<String> names = new ArrayList<>();
+        Cursor cursor = mDatabase.query("projects", new String[] {"name"},
+                                        null, null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                names.add(cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return names.contains(project);
+    }
+
+    private boolean indexExists(String project) {
+        return DatabaseUtils.longForQuery(mDatabase,
+                "SELECT COUNT(*) FROM projects WHERE name=?;", new String[] {project}) != 0;
+    }
+
+    private void benchmark(int count) throws Exception {
+        createProjects(count);
+        // Half of the lookups are for projects which exist
+        final String[] names = new String[LOOKUPS];
+        for (int i = 0; i < LOOKUPS; i++) {
+            names[i] = i % 2 == 0 ? "project " + (i % count) : "missing " + i;
+        }
+        assertTrue(mProjectData.exists(names[0]));
+        assertFalse(mProjectData.exists(names[1]));
+        assertTrue(scanExists(names[0]));
+        assertTrue(indexExists(names[0]));
+        Benchmarks.report("exists() cached, " + count + " projects",
+                Benchmarks.measure(WARM_UP, LOOKUPS, new Benchmarks.Operation() {
+                    @Override
+                    public void run(int iteration) {
+                        mProjectData.exists(names[iteration % LOOKUPS]);
+                    }
+                }));
+        Benchmarks.report("exists() by name index, " + count + " projects",
+                Benchmarks.measure(WARM_UP, LOOKUPS, new Benchmarks.Operation() {
+                    @Override
+                    public void run(int iteration) {
+                        indexExists(names[iteration % LOOKUPS]);
+                    }
+                }));
+        int scans = Math.max(10, Math.min(LOOKUPS, SCANNED_NAMES / count));
+        Benchmarks.report("exists() by scan, " + count + " projects",
+                Benchmarks.measure(Math.min(WARM_UP, scans), scans,
+                        new Benchmarks.Operation() {
+                            @Override
+                            public void run(int iteration) {
+                                scanExists(names[iteration % LOOKUPS]);
+                            }
+                        }));
+    }
+
+    @Test
+    public void tenProjects() throws Exception {
+        benchmark(10);
+    }
+
+    @Test
+    public void thousandProjects() throws Exception {
+        benchmark(1000);
+    }
+
+    @Test
+    public void tenThousandProjects() throws Exception {
+        benchmark(10000);
+    }
+}
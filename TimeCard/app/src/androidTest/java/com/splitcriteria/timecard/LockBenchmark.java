@@ -0,0 +1,178 @@
+package com.splitcriteria.timecard;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Contention stress test of DatabaseLock. Several threads acquire and release the lock as
+ * ProjectData does, and the throughput is compared with the file-backed semaphore which
+ * DatabaseLock used to go through.
+ */
+@RunWith(AndroidJUnit4.class)
+public class LockBenchmark {
+
+    private static final String SEMAPHORE_KEY = "lock_benchmark.semaphore";
+    private static final int THREADS = 4;
+    private static final int OPERATIONS_PER_THREAD = 2000;
+
+    private Context mContext;
+
+    /**
+     * The file-backed semaphore which DatabaseLock used, where every acquire and release
+     * reads, splits and rewrites a file
+     */
+    private static class FileSemaphore {
+
+        private final Context mContext;
+
+        FileSemaphore(Context context) {
+            mContext = context;
+        }
+
+        private synchronized int getPermitsAcquired(String key, String id) {
+            try {
+                InputStream in = mContext.openFileInput(key);
+                byte[] buffer = new byte[4096];
+                int bytesRead = in.read(buffer);
+                in.close();
+                String[] idAndPermitCount = new String(buffer, 0, bytesRead, "UTF-8").split(",");
+                return idAndPermitCount[0].equals(id) ?
+                        Integer.parseInt(idAndPermitCount[1]) : -1;
+            } catch (FileNotFoundException exception) {
+                return 0;
+            } catch (IOException exception) {
+                return -1;
+            }
+        }
+
+        synchronized boolean acquire(String key, String id) {
+            int permitsAcquired = getPermitsAcquired(key, id);
+            return permitsAcquired != -1 && write(key, id, permitsAcquired + 1);
+        }
+
+        synchronized boolean release(String key, String id) {
+            int permitsAcquired = getPermitsAcquired(key, id);
+            if (permitsAcquired == -1) {
+                return false;
+            } else if (permitsAcquired == 0) {
+                return true;
+            } else if (permitsAcquired == 1) {
+                return new File(mContext.getFilesDir(), key).delete();
+            } else {
+                return write(key, id, permitsAcquired - 1);
+            }
+        }
+
+        private synchronized boolean write(String key, String id, int permits) {
+            try {
+                OutputStream out = mContext.openFileOutput(key, Context.MODE_PRIVATE);
+                out.write((id + "," + permits).getBytes("UTF-8"));
+                out.close();
+                return true;
+            } catch (IOException exception) {
+                return false;
+            }
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        mContext = InstrumentationRegistry.getTargetContext();
+        new File(mContext.getFilesDir(), SEMAPHORE_KEY).delete();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        new File(mContext.getFilesDir(), SEMAPHORE_KEY).delete();
+    }
+
+    /**
+     * Runs an operation on several threads at once
+     *
+     * @param name      what's being measured
+     * @param operation the operation each thread runs OPERATIONS_PER_THREAD times
+     * @return  the number of operations which failed
+     * @throws Exception    if the threads are interrupted
+     */
+    private int stress(String name, final Benchmarks.Operation operation) throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch finished = new CountDownLatch(THREADS);
+        final AtomicInteger failures = new AtomicInteger();
+        for (int i = 0; i < THREADS; i++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int j = 0; j < OPERATIONS_PER_THREAD; j++) {
+                            operation.run(j);
+                        }
+                    } catch (Exception exception) {
+                        failures.incrementAndGet();
+                    } finally {
+                        finished.countDown();
+                    }
+                }
+            }).start();
+        }
+        long startNanos = System.nanoTime();
+        start.countDown();
+        finished.await();
+        long elapsedNanos = System.nanoTime() - startNanos;
+        int operations = THREADS * OPERATIONS_PER_THREAD;
+        Benchmarks.report(String.format(Locale.US,
+                "%s: %d threads, %d acquire/release pairs, %.0f pairs/s",
+                name, THREADS, operations, operations * 1e9 / elapsedNanos));
+        return failures.get();
+    }
+
+    @Test
+    public void databaseLockContention() throws Exception {
+        int failures = stress("DatabaseLock", new Benchmarks.Operation() {
+            @Override
+            public void run(int iteration) {
+                if (!DatabaseLock.acquire(mContext, DatabaseLock.DATABASE)) {
+                    throw new IllegalStateException("Unable to acquire the lock");
+                }
+                DatabaseLock.release(mContext, DatabaseLock.DATABASE);
+            }
+        });
+        assertEquals(0, failures);
+        // Every acquisition was released, so a restore can take the lock
+        assertTrue(DatabaseLock.acquire(mContext, DatabaseLock.RESTORE));
+        assertFalse(DatabaseLock.acquire(mContext, DatabaseLock.DATABASE));
+        assertTrue(DatabaseLock.release(mContext, DatabaseLock.RESTORE));
+    }
+
+    @Test
+    public void fileSemaphoreContention() throws Exception {
+        final FileSemaphore semaphore = new FileSemaphore(mContext);
+        int failures = stress("File semaphore", new Benchmarks.Operation() {
+            @Override
+            public void run(int iteration) {
+                if (!semaphore.acquire(SEMAPHORE_KEY, DatabaseLock.DATABASE)) {
+                    throw new IllegalStateException("Unable to acquire the semaphore");
+                }
+                semaphore.release(SEMAPHORE_KEY, DatabaseLock.DATABASE);
+            }
+        });
+        assertEquals(0, failures);
+    }
+}
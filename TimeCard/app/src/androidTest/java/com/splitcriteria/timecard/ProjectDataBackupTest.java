@@ -0,0 +1,188 @@
+package com.splitcriteria.timecard;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Instrumentation test of restoring a database from a base snapshot and the changes
+ * exported after it, in the order RestoreService applies them.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ProjectDataBackupTest {
+
+    private static final String DATABASE_NAME = "backup_test.db";
+    private static final String RESTORED_DATABASE_NAME = "backup_test_restored.db";
+
+    private Context mContext;
+    private ProjectData mProjectData;
+    private File mRestoredFile;
+
+    @Before
+    public void setUp() throws Exception {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mContext.deleteDatabase(DATABASE_NAME);
+        mContext.deleteDatabase(RESTORED_DATABASE_NAME);
+        mRestoredFile = mContext.getDatabasePath(RESTORED_DATABASE_NAME);
+        mProjectData = new ProjectData(mContext, DATABASE_NAME);
+        for (String project : new String[] {"alpha", "beta"}) {
+            assertTrue(mProjectData.addProject(project));
+            addEntry(project, "1");
+            addEntry(project, "2");
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mProjectData.close(mContext);
+        DatabaseHolder.close(DATABASE_NAME);
+        DatabaseHolder.close(RESTORED_DATABASE_NAME);
+        ProjectData.invalidateCache();
+        mContext.deleteDatabase(DATABASE_NAME);
+        mContext.deleteDatabase(RESTORED_DATABASE_NAME);
+    }
+
+    private void addEntry(String project, String extraData) {
+        assertTrue(mProjectData.clockIn(project, extraData));
+        assertTrue(mProjectData.clockOut(project) >= 0);
+    }
+
+    private byte[] exportChanges(long sequence, long expectedLastSequence) throws Exception {
+        ByteArrayOutputStream changes = new ByteArrayOutputStream();
+        long lastSequence = mProjectData.exportChanges(sequence,
+                                                       new DataOutputStream(changes));
+        assertEquals(expectedLastSequence, lastSequence);
+        return changes.toByteArray();
+    }
+
+    private void applyChanges(byte[]... deltas) throws Exception {
+        SQLiteDatabase database = SQLiteDatabase.openDatabase(mRestoredFile.getPath(), null,
+                SQLiteDatabase.OPEN_READWRITE);
+        try {
+            database.beginTransaction();
+            try {
+                for (byte[] delta : deltas) {
+                    ProjectData.applyChanges(database, new DataInputStream(
+                            new ByteArrayInputStream(delta)));
+                }
+                ProjectData.finishApplyingChanges(database);
+                database.setTransactionSuccessful();
+            } finally {
+                database.endTransaction();
+            }
+        } finally {
+            database.close();
+        }
+    }
+
+    private void assertRestoredMatches() {
+        ProjectData restored = new ProjectData(mContext, RESTORED_DATABASE_NAME);
+        try {
+            String[] projects = mProjectData.getProjectNames(false);
+            String[] restoredProjects = restored.getProjectNames(false);
+            Arrays.sort(projects);
+            Arrays.sort(restoredProjects);
+            assertArrayEquals(projects, restoredProjects);
+            for (String project : projects) {
+                ProjectData.Statistics expected = mProjectData.getStatistics(project);
+                ProjectData.Statistics actual = restored.getStatistics(project);
+                assertEquals(expected.count, actual.count);
+                assertEquals(expected.firstStartMillis, actual.firstStartMillis);
+                assertEquals(expected.extraDataCount, actual.extraDataCount);
+                assertEquals(expected.extraDataSum, actual.extraDataSum, 1e-9);
+                assertEquals(expected.open, actual.open);
+                assertEquals(expected.openStartMillis, actual.openStartMillis);
+                RowBlock expectedRows = mProjectData.getRows(project);
+                RowBlock actualRows = restored.getRows(project);
+                assertEquals(expectedRows.size(), actualRows.size());
+                for (int i = 0; i < expectedRows.size(); i++) {
+                    assertEquals(expectedRows.getId(i), actualRows.getId(i));
+                    assertEquals(expectedRows.getStartMillis(i), actualRows.getStartMillis(i));
+                    assertEquals(expectedRows.getEndMillis(i), actualRows.getEndMillis(i));
+                    assertEquals(expectedRows.getExtraData(i), actualRows.getExtraData(i));
+                }
+            }
+        } finally {
+            restored.close(mContext);
+        }
+    }
+
+    @Test
+    public void snapshotMatchesDatabase() throws Exception {
+        long sequence = mProjectData.exportSnapshot(mContext, mRestoredFile);
+        assertEquals(mProjectData.getChangeSequence(), sequence);
+        // Nothing has changed since the snapshot
+        exportChanges(sequence, sequence);
+        assertRestoredMatches();
+    }
+
+    @Test
+    public void snapshotOnlyLogsLaterChanges() throws Exception {
+        mProjectData.exportSnapshot(mContext, mRestoredFile);
+        ProjectData restored = new ProjectData(mContext, RESTORED_DATABASE_NAME);
+        try {
+            // The copied rows weren't logged, but changes to the snapshot are
+            assertEquals(0, restored.getChangeSequence());
+            assertTrue(restored.addProject("gamma"));
+            assertTrue(restored.getChangeSequence() > 0);
+        } finally {
+            restored.close(mContext);
+        }
+    }
+
+    @Test
+    public void changesAreApplied() throws Exception {
+        long sequence = mProjectData.exportSnapshot(mContext, mRestoredFile);
+        assertTrue(mProjectData.addProject("gamma"));
+        addEntry("gamma", "3");
+        assertTrue(mProjectData.deleteProject("beta"));
+        RowBlock rows = mProjectData.getRows("alpha");
+        assertTrue(mProjectData.deleteRow("alpha", (int) rows.getId(0)));
+        assertTrue(mProjectData.clockIn("alpha", "4"));
+        applyChanges(exportChanges(sequence, mProjectData.getChangeSequence()));
+        assertRestoredMatches();
+    }
+
+    @Test
+    public void deltasAreAppliedInSequence() throws Exception {
+        long base = mProjectData.exportSnapshot(mContext, mRestoredFile);
+        assertTrue(mProjectData.addProject("gamma"));
+        addEntry("gamma", "3");
+        long first = mProjectData.getChangeSequence();
+        byte[] firstDelta = exportChanges(base, first);
+        // The backed up changes are pruned, as after a successful backup
+        mProjectData.pruneChanges(first);
+        addEntry("gamma", "5");
+        assertTrue(mProjectData.deleteProject("alpha"));
+        byte[] secondDelta = exportChanges(first, mProjectData.getChangeSequence());
+        applyChanges(firstDelta, secondDelta);
+        assertRestoredMatches();
+    }
+
+    @Test
+    public void longStringsAreApplied() throws Exception {
+        long sequence = mProjectData.exportSnapshot(mContext, mRestoredFile);
+        // Longer than writeUTF() allows
+        char[] note = new char[70 * 1024];
+        Arrays.fill(note, '\u00e9');
+        assertTrue(mProjectData.addProject("gamma"));
+        addEntry("gamma", new String(note));
+        applyChanges(exportChanges(sequence, mProjectData.getChangeSequence()));
+        assertRestoredMatches();
+    }
+}
@@ -0,0 +1,139 @@
+package com.splitcriteria.timecard;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+
+import static org.junit.Assert.*;
+
+/**
+ * Instrumentation test of the database upgrade from version 3, which had a timecard
+ * table per project with local time text, to the current schema.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ProjectDataMigrationTest {
+
+    private static final String DATABASE_NAME = "migration_test.db";
+
+    private Context mContext;
+    private ProjectData mProjectData;
+
+    @Before
+    public void setUp() throws Exception {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mContext.deleteDatabase(DATABASE_NAME);
+        createVersion3Database();
+        mProjectData = new ProjectData(mContext, DATABASE_NAME);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mProjectData.close(mContext);
+        DatabaseHolder.close(DATABASE_NAME);
+        ProjectData.invalidateCache();
+        mContext.deleteDatabase(DATABASE_NAME);
+    }
+
+    /**
+     * Creates a database as version 3 wrote it: "alpha" has two finished entries, and
+     * "beta" has a finished entry and an ongoing one, which is its current timecard
+     */
+    private void createVersion3Database() {
+        File file = mContext.getDatabasePath(DATABASE_NAME);
+        file.getParentFile().mkdirs();
+        SQLiteDatabase database = SQLiteDatabase.openOrCreateDatabase(file, null);
+        try {
+            database.execSQL("CREATE TABLE projects (" +
+                             "name TEXT," +
+                             "display_name TEXT," +
+                             "archived INTEGER DEFAULT 0," +
+                             "track_location INTEGER DEFAULT 0," +
+                             "no_duration INTEGER DEFAULT 0," +
+                             "suppress_notification INTEGER DEFAULT 0," +
+                             "use_extra INTEGER DEFAULT 0," +
+                             "extra_data_title TEXT," +
+                             "default_extra TEXT DEFAULT NULL," +
+                             "data_summary_method TEXT DEFAULT 'none'," +
+                             "current_timecard_row INTEGER DEFAULT -1);");
+            database.execSQL("INSERT INTO projects (name,display_name) " +
+                             "VALUES ('alpha','alpha');");
+            database.execSQL("INSERT INTO projects (name,display_name,current_timecard_row) " +
+                             "VALUES ('beta','beta',2);");
+            for (String project : new String[] {"alpha", "beta"}) {
+                database.execSQL("CREATE TABLE '" + project + "' (" +
+                                 "start TEXT," +
+                                 "end TEXT DEFAULT NULL," +
+                                 "extra TEXT DEFAULT '');");
+            }
+            database.execSQL("INSERT INTO alpha (start,end,extra) " +
+                             "VALUES ('2017-05-03 09:00:00','2017-05-03 10:30:00','2');");
+            database.execSQL("INSERT INTO alpha (start,end,extra) " +
+                             "VALUES ('2017-05-04 08:00:00','2017-05-04 08:15:00','n/a');");
+            database.execSQL("INSERT INTO beta (start,end) " +
+                             "VALUES ('2017-05-05 13:00:00','2017-05-05 14:00:00');");
+            database.execSQL("INSERT INTO beta (start) VALUES ('2017-05-06 07:30:00');");
+            database.setVersion(3);
+        } finally {
+            database.close();
+        }
+    }
+
+    private static long localMillis(String time) throws Exception {
+        return new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US).parse(time).getTime();
+    }
+
+    @Test
+    public void entryTimesAreConvertedToEpochMillis() throws Exception {
+        ProjectData.Statistics statistics = mProjectData.getStatistics("alpha");
+        assertEquals(2, statistics.count);
+        assertEquals((90 + 15) * 60 * 1000L, statistics.totalMillis);
+        assertEquals(localMillis("2017-05-03 09:00:00"), statistics.firstStartMillis);
+        assertEquals(localMillis("2017-05-04 08:15:00"), statistics.lastEndMillis);
+    }
+
+    @Test
+    public void statisticsAreComputed() throws Exception {
+        ProjectData.Statistics statistics = mProjectData.getStatistics("alpha");
+        assertEquals(1, statistics.extraDataCount);
+        assertEquals(2, statistics.extraDataSum, 1e-9);
+        statistics = mProjectData.getStatistics("beta");
+        assertEquals(2, statistics.count);
+        assertTrue(statistics.open);
+        assertEquals(localMillis("2017-05-06 07:30:00"), statistics.openStartMillis);
+    }
+
+    @Test
+    public void currentTimecardIsRemapped() throws Exception {
+        assertTrue(mProjectData.clockOut("beta") >= 0);
+        ProjectData.Statistics statistics = mProjectData.getStatistics("beta");
+        assertEquals(2, statistics.count);
+        assertFalse(statistics.open);
+        // The other project's entries are untouched
+        assertEquals(2, mProjectData.getStatistics("alpha").count);
+    }
+
+    @Test
+    public void changesAreLoggedAfterUpgrade() throws Exception {
+        // The migrated rows predate the change log
+        assertEquals(0, mProjectData.getChangeSequence());
+        assertTrue(mProjectData.addProject("gamma"));
+        assertTrue(mProjectData.clockIn("gamma", null));
+        long sequence = mProjectData.getChangeSequence();
+        assertTrue(sequence > 0);
+        ByteArrayOutputStream changes = new ByteArrayOutputStream();
+        assertEquals(sequence, mProjectData.exportChanges(0, new DataOutputStream(changes)));
+        assertTrue(changes.size() > 0);
+    }
+}
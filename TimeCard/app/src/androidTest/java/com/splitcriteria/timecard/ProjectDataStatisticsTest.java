@@ -0,0 +1,85 @@
+package com.splitcriteria.timecard;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.*;
+
+/**
+ * Instrumentation test of the project statistics, which are kept up to date in SQL as
+ * projects are clocked in and out.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ProjectDataStatisticsTest {
+
+    private static final String DATABASE_NAME = "statistics_test.db";
+    private static final String PROJECT = "project";
+
+    private Context mContext;
+    private ProjectData mProjectData;
+
+    @Before
+    public void setUp() throws Exception {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mContext.deleteDatabase(DATABASE_NAME);
+        mProjectData = new ProjectData(mContext, DATABASE_NAME);
+        assertTrue(mProjectData.addProject(PROJECT));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mProjectData.close(mContext);
+        DatabaseHolder.close(DATABASE_NAME);
+        ProjectData.invalidateCache();
+        mContext.deleteDatabase(DATABASE_NAME);
+    }
+
+    private void addEntry(String extraData) {
+        assertTrue(mProjectData.clockIn(PROJECT, extraData));
+        assertTrue(mProjectData.clockOut(PROJECT) >= 0);
+    }
+
+    @Test
+    public void numericExtraDataIsSummed() throws Exception {
+        addEntry("1.5");
+        addEntry(" -2 ");
+        addEntry("+3e1");
+        ProjectData.Statistics statistics = mProjectData.getStatistics(PROJECT);
+        assertEquals(3, statistics.count);
+        assertEquals(3, statistics.extraDataCount);
+        assertEquals(29.5, statistics.extraDataSum, 1e-9);
+    }
+
+    @Test
+    public void datesAndRangesAreNotNumbers() throws Exception {
+        addEntry("2017-05-03");
+        addEntry("1-2");
+        addEntry("1.2.3");
+        addEntry("e5");
+        addEntry("12:30");
+        addEntry("1e");
+        addEntry("4");
+        ProjectData.Statistics statistics = mProjectData.getStatistics(PROJECT);
+        assertEquals(7, statistics.count);
+        assertEquals(1, statistics.extraDataCount);
+        assertEquals(4, statistics.extraDataSum, 1e-9);
+    }
+
+    @Test
+    public void rebuiltStatisticsMatch() throws Exception {
+        addEntry("2017-05-03");
+        addEntry("10");
+        addEntry("0.25");
+        mProjectData.rebuildStatistics();
+        ProjectData.Statistics statistics = mProjectData.getStatistics(PROJECT);
+        assertEquals(3, statistics.count);
+        assertEquals(2, statistics.extraDataCount);
+        assertEquals(10.25, statistics.extraDataSum, 1e-9);
+    }
+}
@@ -0,0 +1,157 @@
+package com.splitcriteria.timecard;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.*;
+
+/**
+ * Microbenchmark of 10,000 clock toggles. ProjectData.toggleClockInOut(), which runs on
+ * the compiled statement cache, is compared with the clock in/out path it replaced,
+ * which built ContentValues and SQL strings and had SQLite compile them on every call.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ToggleBenchmark {
+
+    private static final String DATABASE_NAME = "toggle_benchmark.db";
+    private static final String PROJECT = "project";
+    private static final int TOGGLES = 10000;
+    private static final int WARM_UP = 500;
+
+    private Context mContext;
+    private SQLiteDatabase mDatabase;
+
+    @Before
+    public void setUp() throws Exception {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mContext.deleteDatabase(DATABASE_NAME);
+        ProjectData projectData = new ProjectData(mContext, DATABASE_NAME);
+        assertTrue(projectData.addProject(PROJECT));
+        projectData.close(mContext);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (mDatabase != null) {
+            mDatabase.close();
+        }
+        DatabaseHolder.close(DATABASE_NAME);
+        ProjectData.invalidateCache();
+        mContext.deleteDatabase(DATABASE_NAME);
+    }
+
+    /**
+     * Toggles the project the way clockIn() and clockOut() used to, with ContentValues,
+     * selection strings and execSQL() statements which are compiled on every call
+     */
+    private void legacyToggle() {
+        long now = System.currentTimeMillis();
+        mDatabase.beginTransaction();
+        try {
+            int projectId;
+            int currentTimecard;
+            Cursor cursor = mDatabase.query(
+                    "projects", new String[] {"rowid", "current_timecard_row"}, "name=?",
+                    new String[] {PROJECT}, null, null, null);
+            try {
+                assertTrue(cursor.moveToFirst());
+                projectId = cursor.getInt(0);
+                currentTimecard = cursor.getInt(1);
+            } finally {
+                cursor.close();
+            }
+            int rowId;
+            if (currentTimecard == -1) {
+                ContentValues cv = new ContentValues();
+                cv.put("project_id", projectId);
+                cv.put("start", now);
+                rowId = (int) mDatabase.insert("entries", null, cv);
+                mDatabase.execSQL(
+                        "UPDATE project_stats SET " +
+                            "row_count=row_count+1," +
+                            "first_start=MIN(IFNULL(first_start,?1),?1)," +
+                            "last_end=CASE WHEN IFNULL(last_start,?1)<=?1 " +
+                                "THEN ?2 ELSE last_end END," +
+                            "last_start=MAX(IFNULL(last_start,?1),?1)," +
+                            "open_start=CASE WHEN ?2 IS NULL THEN ?1 ELSE open_start END " +
+                        "WHERE project_id=?3;",
+                        new Object[] {now, null, projectId});
+            } else {
+                long startTime;
+                cursor = mDatabase.query(
+                        "entries", new String[] {"start"}, "rowid=?",
+                        new String[] {Integer.toString(currentTimecard)}, null, null, null);
+                try {
+                    assertTrue(cursor.moveToFirst());
+                    startTime = cursor.getLong(0);
+                } finally {
+                    cursor.close();
+                }
+                ContentValues cv = new ContentValues();
+                cv.put("end", now);
+                assertEquals(1, mDatabase.update("entries", cv, "rowid=?",
+                        new String[] {Integer.toString(currentTimecard)}));
+                mDatabase.execSQL(
+                        "UPDATE project_stats SET " +
+                            "total_millis=total_millis+?1-?2," +
+                            "last_end=IFNULL(last_end,?1)," +
+                            "open_start=NULL " +
+                        "WHERE project_id=?3;",
+                        new Object[] {now, startTime, projectId});
+                rowId = -1;
+            }
+            ContentValues cv = new ContentValues();
+            cv.put("current_timecard_row", rowId);
+            assertEquals(1, mDatabase.update("projects", cv,
+                    "rowid=? AND current_timecard_row=?",
+                    new String[] {Integer.toString(projectId),
+                                  Integer.toString(currentTimecard)}));
+            mDatabase.setTransactionSuccessful();
+        } finally {
+            mDatabase.endTransaction();
+        }
+    }
+
+    @Test
+    public void cachedStatements() throws Exception {
+        // One ProjectData for the whole run, so only the toggles are measured. The
+        // cached path also keeps the clock state snapshot and the project events up to
+        // date, which the legacy path below doesn't.
+        final ProjectData projectData = new ProjectData(mContext, DATABASE_NAME);
+        try {
+            Benchmarks.report("toggle, cached statements",
+                    Benchmarks.measure(WARM_UP, TOGGLES, new Benchmarks.Operation() {
+                        @Override
+                        public void run(int iteration) {
+                            assertTrue(projectData.toggleClockInOut(PROJECT, null));
+                        }
+                    }));
+        } finally {
+            projectData.close(mContext);
+        }
+    }
+
+    @Test
+    public void legacyStatements() throws Exception {
+        assertTrue(DatabaseHolder.close(DATABASE_NAME));
+        mDatabase = SQLiteDatabase.openDatabase(
+                mContext.getDatabasePath(DATABASE_NAME).getPath(), null,
+                SQLiteDatabase.OPEN_READWRITE);
+        Benchmarks.report("toggle, statements compiled per call",
+                Benchmarks.measure(WARM_UP, TOGGLES, new Benchmarks.Operation() {
+                    @Override
+                    public void run(int iteration) {
+                        legacyToggle();
+                    }
+                }));
+    }
+}
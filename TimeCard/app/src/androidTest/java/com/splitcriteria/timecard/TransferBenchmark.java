@@ -0,0 +1,208 @@
+package com.splitcriteria.timecard;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Throughput and CPU time of moving a 200 MB database file, the way backup and restore
+ * used to (through a heap buffer and a pair of buffered streams) and the way they do now:
+ * FileChannel transfers for a plain database file, and the compressed segments of the
+ * backup format. Both ends are files here, since the benchmark has no document provider
+ * to write through.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TransferBenchmark {
+
+    private static final long DATABASE_SIZE = 200L * 1024 * 1024;
+    private static final int PAGE_SIZE = 4096;
+    private static final int RUNS = 3;
+    private static final int WARM_UP = 1;
+
+    private Context mContext;
+    private int mBufferSize;
+    private File mSource;
+    private File mTarget;
+
+    @Before
+    public void setUp() throws Exception {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mBufferSize = mContext.getResources().getInteger(R.integer.buffer_size_bytes);
+        mSource = new File(mContext.getCacheDir(), "transfer_benchmark.db");
+        mTarget = new File(mContext.getCacheDir(), "transfer_benchmark.out");
+        // Pages which are partly random and partly repeated, so the segment blocks
+        // compress about as well as database pages do
+        byte[] page = new byte[PAGE_SIZE];
+        Random random = new Random(42);
+        OutputStream out = new FileOutputStream(mSource);
+        try {
+            for (long written = 0; written < DATABASE_SIZE; written += PAGE_SIZE) {
+                random.nextBytes(page);
+                Arrays.fill(page, PAGE_SIZE / 2, PAGE_SIZE, (byte) 0);
+                out.write(page);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mSource.delete();
+        mTarget.delete();
+    }
+
+    private void report(String name, Benchmarks.Result result) {
+        Benchmarks.report(String.format(Locale.US,
+                "%s: %d runs of %d MB, %.1f MB/s, %.0f ms cpu/run",
+                name, result.iterations, DATABASE_SIZE / (1024 * 1024),
+                DATABASE_SIZE * result.iterations / (1024.0 * 1024.0) /
+                        (result.wallNanos / 1e9),
+                result.cpuNanos / 1e6 / result.iterations));
+    }
+
+    @Test
+    public void bufferedStreams() throws Exception {
+        report("buffered streams", Benchmarks.measure(WARM_UP, RUNS,
+                new Benchmarks.Operation() {
+                    @Override
+                    public void run(int iteration) throws Exception {
+                        InputStream in = new BufferedInputStream(new FileInputStream(mSource));
+                        OutputStream out =
+                                new BufferedOutputStream(new FileOutputStream(mTarget));
+                        try {
+                            byte[] buffer = new byte[mBufferSize];
+                            int bytesRead;
+                            while ((bytesRead = in.read(buffer)) > 0) {
+                                out.write(buffer, 0, bytesRead);
+                            }
+                        } finally {
+                            in.close();
+                            out.close();
+                        }
+                    }
+                }));
+        assertEquals(DATABASE_SIZE, mTarget.length());
+    }
+
+    @Test
+    public void channelTransfers() throws Exception {
+        report("channel transferTo", Benchmarks.measure(WARM_UP, RUNS,
+                new Benchmarks.Operation() {
+                    @Override
+                    public void run(int iteration) throws Exception {
+                        FileChannel in = new FileInputStream(mSource).getChannel();
+                        FileChannel out = new FileOutputStream(mTarget).getChannel();
+                        try {
+                            long position = 0;
+                            long size = in.size();
+                            while (position < size) {
+                                position += in.transferTo(position, size - position, out);
+                            }
+                        } finally {
+                            in.close();
+                            out.close();
+                        }
+                    }
+                }));
+        assertEquals(DATABASE_SIZE, mTarget.length());
+        // As RestoreService moves a plain database file, in chunks of the buffer size
+        report("channel transferFrom", Benchmarks.measure(WARM_UP, RUNS,
+                new Benchmarks.Operation() {
+                    @Override
+                    public void run(int iteration) throws Exception {
+                        FileChannel in = new FileInputStream(mSource).getChannel();
+                        FileChannel out = new FileOutputStream(mTarget).getChannel();
+                        try {
+                            long position = 0;
+                            long bytesRead;
+                            while ((bytesRead = out.transferFrom(
+                                    in, position, mBufferSize)) > 0) {
+                                position += bytesRead;
+                            }
+                        } finally {
+                            in.close();
+                            out.close();
+                        }
+                    }
+                }));
+        assertEquals(DATABASE_SIZE, mTarget.length());
+    }
+
+    @Test
+    public void segments() throws Exception {
+        // As BackupService writes a base segment
+        report("segment write", Benchmarks.measure(WARM_UP, RUNS,
+                new Benchmarks.Operation() {
+                    @Override
+                    public void run(int iteration) throws Exception {
+                        FileInputStream in = new FileInputStream(mSource);
+                        FileChannel out = new FileOutputStream(mTarget).getChannel();
+                        try {
+                            BackupArchive.SegmentOutputStream segment =
+                                    new BackupArchive.SegmentOutputStream(out,
+                                            new BackupArchive.Segment(
+                                                    BackupArchive.SEGMENT_BASE, PAGE_SIZE,
+                                                    1, 1, DATABASE_SIZE));
+                            byte[] buffer = new byte[mBufferSize];
+                            int bytesRead;
+                            while ((bytesRead = in.read(buffer)) > 0) {
+                                segment.write(buffer, 0, bytesRead);
+                            }
+                            segment.close();
+                        } finally {
+                            in.close();
+                            out.close();
+                        }
+                    }
+                }));
+        Benchmarks.report(String.format(Locale.US, "segment size: %.1f MB",
+                                        mTarget.length() / (1024.0 * 1024.0)));
+        // As RestoreService reads it back
+        report("segment read", Benchmarks.measure(WARM_UP, RUNS,
+                new Benchmarks.Operation() {
+                    @Override
+                    public void run(int iteration) throws Exception {
+                        FileChannel in = new FileInputStream(mTarget).getChannel();
+                        try {
+                            ByteBuffer header = ByteBuffer.allocate(BackupArchive.HEADER_SIZE);
+                            assertTrue(BackupArchive.readFully(in, header));
+                            header.flip();
+                            BackupArchive.Segment segment = BackupArchive.parseHeader(header);
+                            InputStream stream =
+                                    new BackupArchive.SegmentInputStream(in, segment, header);
+                            byte[] buffer = new byte[mBufferSize];
+                            long total = 0;
+                            int bytesRead;
+                            while ((bytesRead = stream.read(buffer)) > 0) {
+                                total += bytesRead;
+                            }
+                            stream.close();
+                            assertEquals(DATABASE_SIZE, total);
+                        } finally {
+                            in.close();
+                        }
+                    }
+                }));
+    }
+}
@@ -0,0 +1,460 @@
+package com.splitcriteria.timecard;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Timecard - Allows users to easily track time-based data for analysis.
+ * Copyright (C) 2017  Nicholas Johnson
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Timecard - Copyright (C) 2017  Nicholas Johnson
+ *
+ * This program comes with ABSOLUTELY NO WARRANTY; for details type `show w'.
+ * This is free software, and you are welcome to redistribute it
+ * under certain conditions; type `show c' for details.
+ *
+ * Describes the layout of a backup, which is a sequence of segments. The first segment
+ * is a base snapshot of the database (a database file), and each following segment holds
+ * the rows changed since the segment before it (as written by ProjectData.exportChanges()).
+ * Every segment starts with a fixed size header which gives its type, the database schema
+ * version and page size, the change log sequence numbers it goes from and to, and the
+ * length of its data. The data follows as Deflater compressed blocks, each with the CRC32
+ * of its uncompressed bytes, and then an empty block and the SHA-256 digest of the header
+ * and all the data. Segments are written and read in a single pass, a block at a time.
+ * How far the backup is up to date is kept in the user preferences.
+ */
+
+class BackupArchive {
+
+    static final int SEGMENT_BASE = 1;
+    static final int SEGMENT_DELTA = 2;
+    static final int HEADER_SIZE = 40;
+
+    // "TCB2", which can't be mistaken for the start of a database file
+    private static final int MAGIC = 0x54434232;
+    // The start of every SQLite database file, i.e. of backups made before segments
+    private static final byte[] DATABASE_FILE_MAGIC =
+            "SQLite format 3\0".getBytes(Charset.forName("US-ASCII"));
+    // The offset of the page size within a database file header
+    private static final int DATABASE_PAGE_SIZE_OFFSET = 16;
+    // The uncompressed size of a block, and the size of a block's header
+    private static final int BLOCK_SIZE = 65536;
+    private static final int BLOCK_HEADER_SIZE = 12;
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+    private static final int DIGEST_SIZE = 32;
+
+    static class Segment {
+        int type;
+        int schemaVersion;
+        int pageSize;
+        long fromSequence;
+        long toSequence;
+        long length;
+
+        Segment(int type, int pageSize, long fromSequence, long toSequence, long length) {
+            this(type, ProjectData.DATABASE_VERSION, pageSize, fromSequence, toSequence,
+                 length);
+        }
+
+        private Segment(int type, int schemaVersion, int pageSize,
+                        long fromSequence, long toSequence, long length) {
+            this.type = type;
+            this.schemaVersion = schemaVersion;
+            this.pageSize = pageSize;
+            this.fromSequence = fromSequence;
+            this.toSequence = toSequence;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Thrown when a backup's checksums don't match its data
+     */
+    static class CorruptBackupException extends IOException {
+        CorruptBackupException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Writes the data of a segment. The header is written when the stream is created, and
+     * the segment is finished when the stream is closed, which leaves the channel open.
+     */
+    static class SegmentOutputStream extends OutputStream {
+
+        private WritableByteChannel mChannel;
+        private byte[] mBlock = new byte[BLOCK_SIZE];
+        private int mBlockLength = 0;
+        private byte[] mDeflateBuffer = new byte[BLOCK_SIZE];
+        private ByteArrayOutputStream mCompressed = new ByteArrayOutputStream(BLOCK_SIZE);
+        private Deflater mDeflater = new Deflater();
+        private CRC32 mCrc = new CRC32();
+        private MessageDigest mDigest = createDigest();
+        private long mBytesWritten = 0;
+        private boolean mClosed = false;
+
+        /**
+         * Starts a segment by writing its header
+         *
+         * @param channel   the channel to write to
+         * @param segment   the segment
+         * @throws IOException  if the header can't be written
+         */
+        SegmentOutputStream(WritableByteChannel channel, Segment segment) throws IOException {
+            mChannel = channel;
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC);
+            header.putInt(segment.type);
+            header.putInt(segment.schemaVersion);
+            header.putInt(segment.pageSize);
+            header.putLong(segment.fromSequence);
+            header.putLong(segment.toSequence);
+            header.putLong(segment.length);
+            mDigest.update(header.array());
+            header.flip();
+            writeFully(header);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            mBlock[mBlockLength++] = (byte) b;
+            if (mBlockLength == BLOCK_SIZE) {
+                writeBlock();
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int count = Math.min(len, BLOCK_SIZE - mBlockLength);
+                System.arraycopy(b, off, mBlock, mBlockLength, count);
+                mBlockLength += count;
+                off += count;
+                len -= count;
+                if (mBlockLength == BLOCK_SIZE) {
+                    writeBlock();
+                }
+            }
+        }
+
+        /**
+         * Finishes the segment by writing the last block, the empty block, and the digest
+         *
+         * @throws IOException  if the segment can't be written
+         */
+        @Override
+        public void close() throws IOException {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            try {
+                writeBlock();
+                writeFully(ByteBuffer.allocate(BLOCK_HEADER_SIZE));
+                writeFully(ByteBuffer.wrap(mDigest.digest()));
+            } finally {
+                mDeflater.end();
+            }
+        }
+
+        /**
+         * Returns the number of bytes written to the channel
+         *
+         * @return  the number of bytes written, including headers and the digest
+         */
+        long getBytesWritten() {
+            return mBytesWritten;
+        }
+
+        private void writeBlock() throws IOException {
+            if (mBlockLength == 0) {
+                return;
+            }
+            mDigest.update(mBlock, 0, mBlockLength);
+            mCrc.reset();
+            mCrc.update(mBlock, 0, mBlockLength);
+            // Each block is compressed on its own, so it can be checked on its own
+            mDeflater.reset();
+            mDeflater.setInput(mBlock, 0, mBlockLength);
+            mDeflater.finish();
+            mCompressed.reset();
+            while (!mDeflater.finished()) {
+                int count = mDeflater.deflate(mDeflateBuffer);
+                mCompressed.write(mDeflateBuffer, 0, count);
+            }
+            ByteBuffer blockHeader = ByteBuffer.allocate(BLOCK_HEADER_SIZE);
+            blockHeader.putInt(mBlockLength);
+            blockHeader.putInt(mCompressed.size());
+            blockHeader.putInt((int) mCrc.getValue());
+            blockHeader.flip();
+            writeFully(blockHeader);
+            writeFully(ByteBuffer.wrap(mCompressed.toByteArray()));
+            mBlockLength = 0;
+        }
+
+        private void writeFully(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                mBytesWritten += mChannel.write(buffer);
+            }
+        }
+    }
+
+    /**
+     * Reads the data of a segment, checking each block as it's read. The end of the
+     * stream is only reached once the digest of the whole segment has been checked, so a
+     * client must read to the end before trusting any of the data.
+     */
+    static class SegmentInputStream extends InputStream {
+
+        private ReadableByteChannel mChannel;
+        private Segment mSegment;
+        private byte[] mBlock = new byte[BLOCK_SIZE];
+        private int mBlockLength = 0;
+        private int mBlockPosition = 0;
+        private long mLength = 0;
+        private Inflater mInflater = new Inflater();
+        private CRC32 mCrc = new CRC32();
+        private MessageDigest mDigest = createDigest();
+        private boolean mFinished = false;
+
+        /**
+         * Starts reading a segment
+         *
+         * @param channel   the channel to read from, positioned after the header
+         * @param segment   the segment, as parsed by parseHeader()
+         * @param header    the buffer the header was parsed from
+         */
+        SegmentInputStream(ReadableByteChannel channel, Segment segment, ByteBuffer header) {
+            mChannel = channel;
+            mSegment = segment;
+            mDigest.update(header.array(), 0, HEADER_SIZE);
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (mBlockPosition == mBlockLength && !readBlock()) {
+                return -1;
+            }
+            int count = Math.min(len, mBlockLength - mBlockPosition);
+            System.arraycopy(mBlock, mBlockPosition, b, off, count);
+            mBlockPosition += count;
+            return count;
+        }
+
+        @Override
+        public void close() {
+            mInflater.end();
+        }
+
+        /**
+         * Reads, decompresses, and checks the next block
+         *
+         * @return  false, if the segment has ended (and its digest matches)
+         * @throws EOFException             if the segment was only partly written
+         * @throws CorruptBackupException   if the segment doesn't match its checksums
+         * @throws IOException              if the channel can't be read
+         */
+        private boolean readBlock() throws IOException {
+            if (mFinished) {
+                return false;
+            }
+            ByteBuffer blockHeader = ByteBuffer.allocate(BLOCK_HEADER_SIZE);
+            readSegmentFully(blockHeader);
+            blockHeader.flip();
+            int length = blockHeader.getInt();
+            int compressedLength = blockHeader.getInt();
+            int crc = blockHeader.getInt();
+            if (length == 0) {
+                // The empty block is followed by the digest of the whole segment
+                ByteBuffer digest = ByteBuffer.allocate(DIGEST_SIZE);
+                readSegmentFully(digest);
+                if (mLength != mSegment.length ||
+                        !Arrays.equals(digest.array(), mDigest.digest())) {
+                    throw new CorruptBackupException("Segment digest mismatch");
+                }
+                mFinished = true;
+                return false;
+            }
+            // Deflater output can be a little larger than its input
+            if (length < 0 || length > BLOCK_SIZE ||
+                    compressedLength < 0 || compressedLength > 2 * BLOCK_SIZE) {
+                throw new CorruptBackupException("Invalid block header");
+            }
+            ByteBuffer compressed = ByteBuffer.allocate(compressedLength);
+            readSegmentFully(compressed);
+            mInflater.reset();
+            mInflater.setInput(compressed.array());
+            try {
+                if (mInflater.inflate(mBlock, 0, length) != length || !mInflater.finished()) {
+                    throw new CorruptBackupException("Block length mismatch");
+                }
+            } catch (DataFormatException exception) {
+                throw new CorruptBackupException(exception.getMessage());
+            }
+            mCrc.reset();
+            mCrc.update(mBlock, 0, length);
+            if ((int) mCrc.getValue() != crc) {
+                throw new CorruptBackupException("Block checksum mismatch");
+            }
+            mDigest.update(mBlock, 0, length);
+            mLength += length;
+            mBlockLength = length;
+            mBlockPosition = 0;
+            return true;
+        }
+
+        private void readSegmentFully(ByteBuffer buffer) throws IOException {
+            if (!readFully(mChannel, buffer)) {
+                throw new EOFException("Segment ended early");
+            }
+        }
+    }
+
+    /**
+     * Parses a segment header
+     *
+     * @param header    a buffer holding HEADER_SIZE bytes, ready to be read
+     * @return  the Segment, or null if the bytes aren't a segment header
+     */
+    static Segment parseHeader(ByteBuffer header) {
+        if (header.remaining() < HEADER_SIZE || header.getInt() != MAGIC) {
+            return null;
+        }
+        return new Segment(header.getInt(), header.getInt(), header.getInt(),
+                           header.getLong(), header.getLong(), header.getLong());
+    }
+
+    /**
+     * Determines whether a backup is a plain database file, as written before backups
+     * were made up of segments
+     *
+     * @param header    a buffer holding the start of the backup, ready to be read
+     * @return  true, if the backup starts like a database file
+     */
+    static boolean isDatabaseFile(ByteBuffer header) {
+        if (header.remaining() < DATABASE_FILE_MAGIC.length) {
+            return false;
+        }
+        for (int i = 0; i < DATABASE_FILE_MAGIC.length; i++) {
+            if (header.get(header.position() + i) != DATABASE_FILE_MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads the page size from the header of a database file
+     *
+     * @param database  the database file
+     * @return  the page size, in bytes
+     * @throws IOException  if the file can't be read
+     */
+    static int readPageSize(FileChannel database) throws IOException {
+        ByteBuffer pageSize = ByteBuffer.allocate(2);
+        database.read(pageSize, DATABASE_PAGE_SIZE_OFFSET);
+        pageSize.flip();
+        // A page size of 65536 is stored as 1, since it doesn't fit
+        int size = pageSize.remaining() == 2 ? pageSize.getShort() & 0xFFFF : 0;
+        return size == 1 ? 65536 : size;
+    }
+
+    /**
+     * Reads from a channel until a buffer is full or the end of the channel is reached
+     *
+     * @param channel   the channel to read from
+     * @param buffer    the buffer to fill
+     * @return  true, if the buffer was filled
+     * @throws IOException  if the channel can't be read
+     */
+    static boolean readFully(ReadableByteChannel channel, ByteBuffer buffer)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException exception) {
+            throw new RuntimeException(exception);
+        }
+    }
+
+    /**
+     * Forgets how far the backup is up to date, so that the next backup is a full backup.
+     * This must be called whenever the change log no longer follows on from the backup
+     * (e.g. when the database is restored).
+     *
+     * @param context   a Context
+     */
+    static void resetIncrementalBackup(Context context) {
+        clearIncrementalBackup(context).apply();
+    }
+
+    /**
+     * Marks a backup as being written, before any of it is written. This forgets how far
+     * the backup is up to date, like resetIncrementalBackup(), but waits until that's
+     * saved. If the backup is then interrupted (e.g. the process is killed partway
+     * through a segment), the next backup is a full backup rather than a delta appended
+     * after the partly written segment. The backup records how far it's up to date once
+     * it's complete.
+     *
+     * @param context   a Context
+     * @return  true if the mark was saved
+     */
+    static boolean markBackupInProgress(Context context) {
+        return clearIncrementalBackup(context).commit();
+    }
+
+    private static SharedPreferences.Editor clearIncrementalBackup(Context context) {
+        return PreferenceManager.getDefaultSharedPreferences(context).edit()
+                .remove(context.getString(R.string.preferences_key_backup_sequence))
+                .remove(context.getString(R.string.preferences_key_backup_sequence_uri))
+                .remove(context.getString(R.string.preferences_key_backup_delta_count));
+    }
+}
@@ -6,20 +6,24 @@ import android.app.job.JobParameters;
 import android.app.job.JobService;
 import android.content.Intent;
 import android.content.SharedPreferences;
+import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
 import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.ParcelFileDescriptor;
 import android.preference.PreferenceManager;
 import android.text.TextUtils;
 import android.util.Log;
 import android.widget.Toast;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.URL;
+import java.nio.channels.FileChannel;
 
 /**
  * Timecard - Allows users to easily track time-based data for analysis.
@@ -52,14 +56,20 @@ import java.net.URL;
 public class BackupService extends JobService {
 
     private static final String TAG = "BackupService";
+    // Suffix of the database snapshot which is written to the cache directory
+    private static final String SNAPSHOT_SUFFIX = ".snapshot";
+    // The number of delta segments after which the next backup is a full backup again
+    private static final int MAX_DELTA_SEGMENTS = 30;
 
-    private boolean mBackingUp = false;
+    // How long a backup requested through startService() waits for further requests
+    private static final long START_DELAY_MILLIS = 2000;
 
-    @Override
-    public int onStartCommand(Intent intent, int flags, int startId) {
-        // Only allow one backup at a time. If startService is called multiple
-        // times before another backup is complete, then ignore the backup request
-        if (!mBackingUp) {
+    private boolean mBackingUp = false;
+    private boolean mBackupPending = false;
+    private Handler mHandler = new Handler();
+    private Runnable mStartBackupRunnable = new Runnable() {
+        @Override
+        public void run() {
             mBackingUp = true;
             if (!startBackup(null)) {
                 // If unable to start the backup, then stop the service
@@ -67,9 +77,28 @@ public class BackupService extends JobService {
                 stopSelf();
             }
         }
+    };
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        // Only allow one backup at a time. A burst of startService calls (e.g. from
+        // settings changes) is coalesced into a single backup once the calls stop, and
+        // calls made during a backup are coalesced into one more backup after it.
+        if (mBackingUp) {
+            mBackupPending = true;
+        } else {
+            mHandler.removeCallbacks(mStartBackupRunnable);
+            mHandler.postDelayed(mStartBackupRunnable, START_DELAY_MILLIS);
+        }
         return Service.START_NOT_STICKY;
     }
 
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        mHandler.removeCallbacks(mStartBackupRunnable);
+    }
+
     @Override
     public boolean onStartJob(JobParameters jobParameters) {
         if (startBackup(jobParameters)) {
@@ -98,83 +127,266 @@ public class BackupService extends JobService {
             return false;
         }
         Uri target = Uri.parse(uriString);
-        // Get the database Uri
-        File file = getDatabasePath(getString(R.string.default_database_filename));
-        Uri source = Uri.fromFile(file);
-        if (!DatabaseLock.acquire(this, DatabaseLock.BACKUP)) {
-            return false;
-        }
         new AsyncTask<Uri, Void, String>() {
             @Override
             protected String doInBackground(Uri... uri) {
-                // Get the database source and backup target
-                URL source;
                 Uri target = uri[0];
-                int bytesWritten = 0;
-                try {
-                    source = new URL(uri[1].toString());
-                    // Copy the source to the target
-                    InputStream in = new BufferedInputStream(source.openStream());
-                    OutputStream out = getContentResolver().openOutputStream(target, "w");
-                    if (out == null) {
-                        return getString(R.string.error_backup_title,
-                                getString(R.string.error_backup_unable_to_open_target));
+                SharedPreferences preferences =
+                        PreferenceManager.getDefaultSharedPreferences(BackupService.this);
+                long sequence = preferences.getLong(
+                        getString(R.string.preferences_key_backup_sequence), -1);
+                String sequenceUri = preferences.getString(
+                        getString(R.string.preferences_key_backup_sequence_uri), null);
+                int deltaCount = preferences.getInt(
+                        getString(R.string.preferences_key_backup_delta_count), 0);
+                boolean sameTarget = sequence >= 0 && target.toString().equals(sequenceUri);
+                // Skip the backup altogether if nothing has changed since the last one
+                if (sameTarget) {
+                    ProjectData projectData = new ProjectData(BackupService.this);
+                    long currentSequence = projectData.getChangeSequence();
+                    projectData.close(BackupService.this);
+                    if (currentSequence == sequence) {
+                        return Long.toString(0);
                     }
-                    out = new BufferedOutputStream(out);
-                    byte[] buffer = new byte[
-                            getResources().getInteger(R.integer.buffer_size_bytes)];
-                    int bytesRead;
-                    while ((bytesRead = in.read(buffer)) > 0) {
-                        out.write(buffer, 0, bytesRead);
-                        bytesWritten += bytesRead;
+                }
+                long bytesWritten;
+                try {
+                    // Append the changes since the last backup, unless that backup went
+                    // elsewhere or enough changes have piled up to start over
+                    if (sameTarget && deltaCount < MAX_DELTA_SEGMENTS) {
+                        bytesWritten = appendChanges(target, sequence, deltaCount);
+                    } else {
+                        bytesWritten = writeBase(target);
                     }
-                    in.close();
-                    out.close();
                 } catch (IOException exception) {
+                    // A segment may have been partly written, so start over next time
+                    BackupArchive.resetIncrementalBackup(BackupService.this);
                     return getString(R.string.error_backup_title, exception.getMessage());
+                } catch (RuntimeException exception) {
+                    // e.g. a SecurityException if access to the backup was revoked
+                    BackupArchive.resetIncrementalBackup(BackupService.this);
+                    return getString(R.string.error_backup_title, exception.getMessage());
+                }
+                if (bytesWritten == -1) {
+                    return getString(R.string.error_backup_title,
+                            getString(R.string.error_backup_database_locked));
                 }
                 // Return the number of bytes written on success
-                return Integer.toString(bytesWritten);
+                return Long.toString(bytesWritten);
             }
 
             @Override
             protected void onPostExecute(String result) {
                 // Test whether the result is an integer
-                int bytesWritten;
+                long bytesWritten;
                 try {
-                    bytesWritten = Integer.parseInt(result);
-                    // If an integer is passed, then let the user know of a successful backup
-                    Toast.makeText(BackupService.this,
-                                   R.string.toast_backup_success,
-                                   Toast.LENGTH_SHORT).show();
-                    Log.d(TAG, "Successful backup: wrote " + bytesWritten + " bytes");
+                    bytesWritten = Long.parseLong(result);
+                    if (bytesWritten == 0) {
+                        // Nothing has changed, so there's nothing to tell the user
+                        Log.d(TAG, "Backup is up to date");
+                    } else {
+                        // If an integer is passed, then let the user know of a successful
+                        // backup
+                        Toast.makeText(BackupService.this,
+                                       R.string.toast_backup_success,
+                                       Toast.LENGTH_SHORT).show();
+                        Log.d(TAG, "Successful backup: wrote " + bytesWritten + " bytes");
+                    }
                 } catch (NumberFormatException exception) {
                     // Results which are not numbers are errors
                     Log.e(TAG, result);
                 } finally {
-                    // Release the database lock
-                    DatabaseLock.release(BackupService.this, DatabaseLock.BACKUP);
                     // If this function was not called with job parameters, then it was
                     // started from startService, so we stop ourselves by calling stopSelf
                     // If, on the other hand, this job was created from JobScheduler, then
                     // jobParameters is not null and we call jobFinished to indicate
                     // our work is done.
                     if (jobParameters == null) {
-                        // Reset the "backing up" flag
+                        // Reset the "backing up" flag, and back up whatever changed while
+                        // backing up if another backup was requested
                         mBackingUp = false;
-                        stopSelf();
+                        if (mBackupPending) {
+                            mBackupPending = false;
+                            mStartBackupRunnable.run();
+                        } else {
+                            stopSelf();
+                        }
                     } else {
                         jobFinished(jobParameters, false);
                     }
                 }
             }
 
-        }.execute(target, source);
+        }.execute(target);
 
         // Work is being done on another thread
         return true;
     }
 
+    /**
+     * Writes a full backup, which is a base segment holding a snapshot of the database
+     *
+     * @param target    the backup Uri
+     * @return  the number of bytes written, or -1 if the database is being restored
+     * @throws IOException  if the backup can't be written
+     */
+    private long writeBase(Uri target) throws IOException {
+        // Export the database into a snapshot first, so the read transaction on the live
+        // database only lasts as long as it takes to copy its rows, and not while the
+        // backup is written
+        File snapshot = new File(getCacheDir(),
+                getString(R.string.default_database_filename) + SNAPSHOT_SUFFIX);
+        long sequence;
+        ProjectData projectData = new ProjectData(this);
+        try {
+            sequence = projectData.exportSnapshot(this, snapshot);
+        } finally {
+            projectData.close(this);
+        }
+        if (sequence == -1) {
+            return -1;
+        }
+        long bytesWritten;
+        try {
+            if (!BackupArchive.markBackupInProgress(this)) {
+                throw new IOException(getString(R.string.error_backup_unable_to_save_state));
+            }
+            // Truncate the target, so no segments of an earlier backup are left behind
+            ParcelFileDescriptor descriptor =
+                    getContentResolver().openFileDescriptor(target, "wt");
+            if (descriptor == null) {
+                throw new IOException(getString(R.string.error_backup_unable_to_open_target));
+            }
+            try {
+                FileInputStream in = new FileInputStream(snapshot);
+                try {
+                    // The snapshot is compressed a block at a time as it's read
+                    FileChannel out = new FileOutputStream(
+                            descriptor.getFileDescriptor()).getChannel();
+                    FileChannel snapshotChannel = in.getChannel();
+                    BackupArchive.SegmentOutputStream segment =
+                            new BackupArchive.SegmentOutputStream(out, new BackupArchive.Segment(
+                                    BackupArchive.SEGMENT_BASE,
+                                    BackupArchive.readPageSize(snapshotChannel),
+                                    sequence, sequence, snapshotChannel.size()));
+                    byte[] buffer = new byte[
+                            getResources().getInteger(R.integer.buffer_size_bytes)];
+                    int bytesRead;
+                    while ((bytesRead = in.read(buffer)) > 0) {
+                        segment.write(buffer, 0, bytesRead);
+                    }
+                    segment.close();
+                    bytesWritten = segment.getBytesWritten();
+                } finally {
+                    in.close();
+                }
+            } finally {
+                descriptor.close();
+            }
+        } finally {
+            SQLiteDatabase.deleteDatabase(snapshot);
+        }
+        onBackedUp(target, sequence, 0);
+        return bytesWritten;
+    }
+
+    /**
+     * Appends the rows changed since the last backup to the backup as a delta segment
+     *
+     * @param target        the backup Uri
+     * @param sequence      the change log sequence number the backup is up to date with
+     * @param deltaCount    the number of delta segments in the backup
+     * @return  the number of bytes written, or -1 if the database is being restored
+     * @throws IOException  if the backup can't be written
+     */
+    private long appendChanges(Uri target, long sequence, int deltaCount) throws IOException {
+        ByteArrayOutputStream changes = new ByteArrayOutputStream();
+        long lastSequence;
+        ProjectData projectData = new ProjectData(this);
+        try {
+            lastSequence = projectData.exportChanges(sequence, new DataOutputStream(changes));
+        } finally {
+            projectData.close(this);
+        }
+        if (lastSequence == -1) {
+            return -1;
+        } else if (lastSequence == sequence) {
+            // Nothing has changed since the last backup
+            return 0;
+        }
+        // Until the delta is complete, the backup can't be appended to again
+        if (!BackupArchive.markBackupInProgress(this)) {
+            throw new IOException(getString(R.string.error_backup_unable_to_save_state));
+        }
+        ParcelFileDescriptor descriptor = openForAppend(target);
+        if (descriptor == null) {
+            // The backup can't be appended to, so write a full backup instead
+            return writeBase(target);
+        }
+        long bytesWritten;
+        try {
+            FileChannel out = new FileOutputStream(descriptor.getFileDescriptor()).getChannel();
+            BackupArchive.SegmentOutputStream segment =
+                    new BackupArchive.SegmentOutputStream(out, new BackupArchive.Segment(
+                            BackupArchive.SEGMENT_DELTA, 0, sequence, lastSequence,
+                            changes.size()));
+            changes.writeTo(segment);
+            segment.close();
+            bytesWritten = segment.getBytesWritten();
+        } finally {
+            descriptor.close();
+        }
+        onBackedUp(target, lastSequence, deltaCount + 1);
+        return bytesWritten;
+    }
+
+    /**
+     * Opens the backup for appending. Not every provider supports the "wa" mode, and
+     * those that don't either fail to open the backup or reject the mode.
+     *
+     * @param target    the backup Uri
+     * @return  the backup's file descriptor, or null if it can't be appended to
+     */
+    private ParcelFileDescriptor openForAppend(Uri target) {
+        try {
+            return getContentResolver().openFileDescriptor(target, "wa");
+        } catch (FileNotFoundException exception) {
+            Log.w(TAG, "Unable to append to the backup", exception);
+        } catch (UnsupportedOperationException exception) {
+            Log.w(TAG, "Unable to append to the backup", exception);
+        } catch (IllegalArgumentException exception) {
+            Log.w(TAG, "Unable to append to the backup", exception);
+        }
+        return null;
+    }
+
+    /**
+     * Records how far the backup is up to date, and drops the changes it now holds from
+     * the change log. The changes are only dropped once the record is saved, or the next
+     * backup could follow on from a sequence number that's no longer logged.
+     *
+     * @param target        the backup Uri
+     * @param sequence      the change log sequence number the backup is up to date with
+     * @param deltaCount    the number of delta segments in the backup
+     */
+    private void onBackedUp(Uri target, long sequence, int deltaCount) {
+        boolean saved = PreferenceManager.getDefaultSharedPreferences(this).edit()
+                .putLong(getString(R.string.preferences_key_backup_sequence), sequence)
+                .putString(getString(R.string.preferences_key_backup_sequence_uri),
+                        target.toString())
+                .putInt(getString(R.string.preferences_key_backup_delta_count), deltaCount)
+                .commit();
+        if (!saved) {
+            // Keep the change log, and write a full backup next time
+            Log.w(TAG, "Unable to save the backup sequence");
+            BackupArchive.resetIncrementalBackup(this);
+            return;
+        }
+        ProjectData projectData = new ProjectData(this);
+        projectData.pruneChanges(sequence);
+        projectData.close(this);
+    }
+
     @Override
     public boolean onStopJob(JobParameters jobParameters) {
         return false;
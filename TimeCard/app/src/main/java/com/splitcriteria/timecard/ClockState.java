@@ -0,0 +1,381 @@
+package com.splitcriteria.timecard;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Timecard - Allows users to easily track time-based data for analysis.
+ * Copyright (C) 2017  Nicholas Johnson
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Timecard - Copyright (C) 2017  Nicholas Johnson
+ *
+ * This program comes with ABSOLUTELY NO WARRANTY; for details type `show w'.
+ * This is free software, and you are welcome to redistribute it
+ * under certain conditions; type `show c' for details.
+ *
+ * A snapshot of the clock state of every project (whether it's clocked in, since when,
+ * and the flags which affect clocking in) held in a small memory-mapped file. Widgets
+ * and notifications read a project's state from here without opening the database.
+ * The database remains the source of truth: ProjectData updates the snapshot after
+ * every change it commits, and the snapshot is rebuilt from the database at startup.
+ * Until the rebuild is published (and after the database is replaced, until it's
+ * rebuilt again) get() returns nothing, so readers fall back to the database instead
+ * of trusting a file which may have been left out of date.
+ *
+ * The file is a header followed by fixed size records, one per project. Each record
+ * has a sequence number which is odd while the record is being written, so a record
+ * torn by a crash is ignored (and the reader falls back to the database).
+ */
+
+class ClockState {
+
+    private static final String TAG = "ClockState";
+
+    private static final String FILE_EXTENSION = ".clockstate";
+    private static final int MAGIC = 0x54434B53;
+    private static final int LAYOUT_VERSION = 1;
+    // Header: magic, layout version, record count, reserved
+    private static final int OFFSET_MAGIC = 0;
+    private static final int OFFSET_LAYOUT_VERSION = 4;
+    private static final int OFFSET_COUNT = 8;
+    private static final int HEADER_SIZE = 16;
+    private static final int RECORD_SIZE = 256;
+    // Record: sequence, project ID, flags, open start, name length, name
+    private static final int OFFSET_SEQUENCE = 0;
+    private static final int OFFSET_PROJECT_ID = 4;
+    private static final int OFFSET_FLAGS = 8;
+    private static final int OFFSET_OPEN_START = 12;
+    private static final int OFFSET_NAME_LENGTH = 20;
+    private static final int OFFSET_NAME = 24;
+    private static final int MAX_NAME_BYTES = RECORD_SIZE - OFFSET_NAME;
+    private static final int INITIAL_CAPACITY = 16;
+
+    private static final int FLAG_CLOCKED_IN = 1;
+    private static final int FLAG_NO_DURATION = 2;
+    private static final int FLAG_USES_EXTRA_DATA = 4;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    static class State {
+        String projectName;
+        int projectId;
+        boolean clockedIn;
+        // The start of the ongoing entry, if clocked in
+        long openStartMillis;
+        boolean noDuration;
+        boolean usesExtraData;
+    }
+
+    // The snapshot of each database, keyed by database name
+    private static final Map<String, ClockState> sClockStates = new HashMap<>();
+
+    private final File mFile;
+    private MappedByteBuffer mBuffer;
+    private int mCapacity;
+    private int mCount;
+    // The record index of each project
+    private final Map<String, Integer> mIndex = new HashMap<>();
+    // Incremented by every put() and remove(), so a rebuild can tell whether the
+    // states it read from the database were overtaken by a newer change
+    private long mGeneration;
+    // True once the snapshot has been rebuilt from the current database
+    private boolean mPublished;
+
+    private ClockState(File file) {
+        mFile = file;
+    }
+
+    /**
+     * Returns the clock state snapshot of a database
+     *
+     * @param context   a Context
+     * @param dbName    the database name
+     * @return  the ClockState of the database
+     */
+    static ClockState forDatabase(Context context, String dbName) {
+        synchronized (sClockStates) {
+            ClockState clockState = sClockStates.get(dbName);
+            if (clockState == null) {
+                clockState = new ClockState(
+                        new File(context.getFilesDir(), dbName + FILE_EXTENSION));
+                sClockStates.put(dbName, clockState);
+            }
+            return clockState;
+        }
+    }
+
+    /**
+     * Returns the state of a project
+     *
+     * @param projectName   the project name
+     * @return  the project's State, or null if it isn't in the snapshot or the snapshot
+     *          hasn't been rebuilt yet (in which case the database must be used instead)
+     */
+    synchronized State get(String projectName) {
+        if (!mPublished || !map()) {
+            return null;
+        }
+        Integer index = mIndex.get(projectName);
+        if (index == null) {
+            return null;
+        }
+        return readRecord(index, projectName);
+    }
+
+    /**
+     * Reads a record of the mapped file
+     *
+     * @param index         the record index
+     * @param projectName   the name of the record's project
+     * @return  the project's State, or null if the record is torn
+     */
+    private State readRecord(int index, String projectName) {
+        int offset = HEADER_SIZE + index * RECORD_SIZE;
+        if ((mBuffer.getInt(offset + OFFSET_SEQUENCE) & 1) != 0) {
+            // The record was torn by a crash
+            return null;
+        }
+        State state = new State();
+        state.projectName = projectName;
+        state.projectId = mBuffer.getInt(offset + OFFSET_PROJECT_ID);
+        int flags = mBuffer.getInt(offset + OFFSET_FLAGS);
+        state.clockedIn = (flags & FLAG_CLOCKED_IN) != 0;
+        state.noDuration = (flags & FLAG_NO_DURATION) != 0;
+        state.usesExtraData = (flags & FLAG_USES_EXTRA_DATA) != 0;
+        state.openStartMillis = mBuffer.getLong(offset + OFFSET_OPEN_START);
+        return state;
+    }
+
+    /**
+     * Adds or updates the state of a project. Projects whose names don't fit in a
+     * record are left out of the snapshot.
+     *
+     * @param state the project's State
+     */
+    synchronized void put(State state) {
+        mGeneration++;
+        if (!map()) {
+            return;
+        }
+        byte[] name = state.projectName.getBytes(UTF_8);
+        Integer index = mIndex.get(state.projectName);
+        if (name.length > MAX_NAME_BYTES) {
+            if (index != null) {
+                removeAt(index);
+            }
+            return;
+        }
+        if (index == null) {
+            if (mCount == mCapacity && !resize(mCapacity * 2)) {
+                return;
+            }
+            index = mCount++;
+            mIndex.put(state.projectName, index);
+            mBuffer.putInt(OFFSET_COUNT, mCount);
+        }
+        writeRecord(index, state, name);
+    }
+
+    /**
+     * Removes the state of a project (e.g. when it's deleted)
+     *
+     * @param projectName   the project name
+     */
+    synchronized void remove(String projectName) {
+        mGeneration++;
+        if (!map()) {
+            return;
+        }
+        Integer index = mIndex.get(projectName);
+        if (index != null) {
+            removeAt(index);
+        }
+    }
+
+    /**
+     * Returns the generation of the snapshot, which changes with every put() and
+     * remove(). Read it before querying the states to pass to rebuild().
+     *
+     * @return  the current generation
+     */
+    synchronized long getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Stops get() from returning states until the snapshot is rebuilt, e.g. while the
+     * database is replaced by a restore
+     */
+    synchronized void invalidate() {
+        mGeneration++;
+        mPublished = false;
+    }
+
+    /**
+     * Replaces the whole snapshot with the states read from the database, unless the
+     * snapshot changed since the states were read. Once rebuilt, the snapshot is
+     * published to get().
+     *
+     * @param states        the State of every project
+     * @param generation    the generation read before querying the states
+     * @return  true if the snapshot was rebuilt, false if the states are out of date
+     */
+    synchronized boolean rebuild(List<State> states, long generation) {
+        if (generation != mGeneration) {
+            return false;
+        }
+        if (!map()) {
+            // Without the file, get() keeps falling back to the database
+            return true;
+        }
+        mIndex.clear();
+        mCount = 0;
+        mBuffer.putInt(OFFSET_COUNT, 0);
+        for (State state : states) {
+            put(state);
+        }
+        mBuffer.force();
+        // put() advanced the generation, but these states are the ones just checked
+        mPublished = true;
+        return true;
+    }
+
+    private void removeAt(int index) {
+        // Move the last record into the removed record's place
+        int last = mCount - 1;
+        String removedName = null;
+        String lastName = null;
+        for (Map.Entry<String, Integer> entry : mIndex.entrySet()) {
+            if (entry.getValue() == index) {
+                removedName = entry.getKey();
+            }
+            if (entry.getValue() == last) {
+                lastName = entry.getKey();
+            }
+        }
+        if (index != last && lastName != null) {
+            State lastState = readRecord(last, lastName);
+            if (lastState != null) {
+                writeRecord(index, lastState, lastName.getBytes(UTF_8));
+                mIndex.put(lastName, index);
+            } else {
+                mIndex.remove(lastName);
+            }
+        }
+        mIndex.remove(removedName);
+        mCount = last;
+        mBuffer.putInt(OFFSET_COUNT, mCount);
+    }
+
+    private void writeRecord(int index, State state, byte[] name) {
+        int offset = HEADER_SIZE + index * RECORD_SIZE;
+        int sequence = mBuffer.getInt(offset + OFFSET_SEQUENCE);
+        // Mark the record as being written
+        mBuffer.putInt(offset + OFFSET_SEQUENCE, sequence | 1);
+        int flags = (state.clockedIn ? FLAG_CLOCKED_IN : 0) |
+                (state.noDuration ? FLAG_NO_DURATION : 0) |
+                (state.usesExtraData ? FLAG_USES_EXTRA_DATA : 0);
+        mBuffer.putInt(offset + OFFSET_PROJECT_ID, state.projectId);
+        mBuffer.putInt(offset + OFFSET_FLAGS, flags);
+        mBuffer.putLong(offset + OFFSET_OPEN_START, state.openStartMillis);
+        mBuffer.putInt(offset + OFFSET_NAME_LENGTH, name.length);
+        for (int i = 0; i < name.length; i++) {
+            mBuffer.put(offset + OFFSET_NAME + i, name[i]);
+        }
+        // The record is complete
+        mBuffer.putInt(offset + OFFSET_SEQUENCE, (sequence | 1) + 1);
+    }
+
+    /**
+     * Maps the file (if it isn't already mapped), and indexes its records
+     *
+     * @return  true, if the file is mapped
+     */
+    private boolean map() {
+        if (mBuffer != null) {
+            return true;
+        }
+        int capacity = INITIAL_CAPACITY;
+        if (mFile.exists()) {
+            capacity = Math.max(capacity,
+                                (int)((mFile.length() - HEADER_SIZE) / RECORD_SIZE));
+        }
+        if (!resize(capacity)) {
+            return false;
+        }
+        if (mBuffer.getInt(OFFSET_MAGIC) != MAGIC ||
+                mBuffer.getInt(OFFSET_LAYOUT_VERSION) != LAYOUT_VERSION) {
+            // A new (or unreadable) file, which is filled in when it's rebuilt
+            mBuffer.putInt(OFFSET_MAGIC, MAGIC);
+            mBuffer.putInt(OFFSET_LAYOUT_VERSION, LAYOUT_VERSION);
+            mBuffer.putInt(OFFSET_COUNT, 0);
+        }
+        mCount = Math.min(mBuffer.getInt(OFFSET_COUNT), mCapacity);
+        mIndex.clear();
+        byte[] name = new byte[MAX_NAME_BYTES];
+        for (int index = 0; index < mCount; index++) {
+            int offset = HEADER_SIZE + index * RECORD_SIZE;
+            int nameLength = mBuffer.getInt(offset + OFFSET_NAME_LENGTH);
+            if (nameLength < 0 || nameLength > MAX_NAME_BYTES) {
+                continue;
+            }
+            for (int i = 0; i < nameLength; i++) {
+                name[i] = mBuffer.get(offset + OFFSET_NAME + i);
+            }
+            mIndex.put(new String(name, 0, nameLength, UTF_8), index);
+        }
+        return true;
+    }
+
+    /**
+     * (Re)maps the file with room for a number of records
+     *
+     * @param capacity  the number of records
+     * @return  true, if the file is mapped
+     */
+    private boolean resize(int capacity) {
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(mFile, "rw");
+            // The mapping remains valid after the file is closed
+            mBuffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                                            HEADER_SIZE + capacity * RECORD_SIZE);
+            mCapacity = capacity;
+            return true;
+        } catch (IOException exception) {
+            Log.e(TAG, "Unable to map " + mFile, exception);
+            mBuffer = null;
+            return false;
+        } finally {
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException exception) {
+                    // Ignore
+                }
+            }
+        }
+    }
+}
@@ -4,11 +4,8 @@ import android.content.Context;
 import android.text.TextUtils;
 
 import java.text.SimpleDateFormat;
-import java.util.ArrayList;
 import java.util.Calendar;
-import java.util.Collections;
 import java.util.Date;
-import java.util.List;
 import java.util.Locale;
 
 /**
@@ -67,60 +64,32 @@ class DataSummary {
         }
     }
 
-    static String getSummary(Context context, ProjectData.ExtendedMetadata extendedMetadata) {
-        Calendar calendar = Calendar.getInstance(Locale.getDefault());
-        return getTimeText(context, (int)(extendedMetadata.totalTime +
-                (calendar.getTimeInMillis()/1000 - extendedMetadata.metadataTime)));
+    /**
+     * Returns the data summary of a project at a given time, without accessing the
+     * database. Only the summaries of clocked in projects change over time.
+     *
+     * @param context           a Context
+     * @param extendedMetadata  the project's extended metadata
+     * @param time              the time, in milliseconds since the epoch
+     * @return  the data summary text
+     */
+    static String getSummary(Context context, ProjectData.ExtendedMetadata extendedMetadata,
+                             long time) {
+        if (!extendedMetadata.clockedIn || extendedMetadata.statistics == null) {
+            return extendedMetadata.dataSummary;
+        }
+        return getSummary(context, extendedMetadata.metadata.dataSummaryMethod,
+                          extendedMetadata.statistics.atTime(time));
     }
 
-    static String getSummary(Context context, String summaryMethod, List<ProjectData.Row> data) {
+    static String getSummary(Context context, String summaryMethod,
+                             ProjectData.Statistics statistics) {
 
         if (TextUtils.isEmpty(summaryMethod)) {
             summaryMethod = context.getString(R.string.preferences_summary_type_default_value);
         }
 
-        // Reverse the data, since it is given in reverse chronological order
-        Collections.reverse(data);
-
-        // Calculate the total time (in seconds)
-        int count = 0;
-        int totalTime = 0;
-        double extraData = 0.0d;
-        int extraDataCount = 0;
-        List<Integer> periods = new ArrayList<>();
-        Calendar firstStartTime = data.size() > 0 ? data.get(0).startTime : null;
-        Calendar lastStartTime = null;
-        Calendar lastEndTime = null;
-        for (ProjectData.Row datum : data) {
-            // Total the time
-            Calendar endTime = datum.endTime;
-            if (datum.endTime == null) {
-                endTime = Calendar.getInstance(Locale.getDefault());
-                endTime.setTime(new Date());
-            }
-            totalTime += (endTime.getTimeInMillis() - datum.startTime.getTimeInMillis()) / 1000;
-            // Total the extra data (if it's a number)
-            try {
-                if (datum.extraData != null) {
-                    extraData += Double.parseDouble(datum.extraData);
-                    extraDataCount += 1;
-                }
-            } catch (NumberFormatException error) {
-                // No operation needed -- it's expected that some of the extra data
-                // won't be a number. We don't want to count those
-            }
-            // Record the period between the last end time and the current start time
-            if (lastEndTime != null) {
-                periods.add((int)((datum.startTime.getTimeInMillis() -
-                                   lastEndTime.getTimeInMillis()) / 1000));
-            }
-            // Record the last start and end times
-            lastStartTime = datum.startTime;
-            lastEndTime = endTime;
-            // Increase the row count
-            count++;
-        }
-
+        int count = statistics == null ? 0 : statistics.count;
         if (count == 0) {
             return context.getString(R.string.data_summary_unknown);
         }
@@ -132,7 +101,7 @@ class DataSummary {
                 context.getString(R.string.preferences_summary_type_auto))) {
             if (count > 0) {
                 summaryMethod = context.getString(R.string.preferences_summary_type_total_time);
-            } else if (extraDataCount > 0) {
+            } else if (statistics.extraDataCount > 0) {
                 summaryMethod = context.getString(
                         R.string.preferences_summary_type_average_extra_data);
             } else {
@@ -142,22 +111,23 @@ class DataSummary {
 
         if (summaryMethod.equals(
                 context.getString(R.string.preferences_summary_type_total_time))) {
-            return getTimeText(context, totalTime);
+            return getTimeText(context, (int)(statistics.totalMillis / 1000));
         } else if (summaryMethod.equals(
                 context.getString(R.string.preferences_summary_type_average_time))) {
-            return context.getString(
-                    R.string.time_average, getTimeText(context, totalTime / count));
+            int averageTime = (int)(statistics.totalMillis / 1000) / count;
+            return context.getString(R.string.time_average, getTimeText(context, averageTime));
         } else if (summaryMethod.equals(
                 context.getString(R.string.preferences_summary_type_average_extra_data))) {
-            if (extraDataCount == 0) {
+            if (statistics.extraDataCount == 0) {
                 return context.getString(R.string.average_extra_data_none);
             } else {
-                return context.getString(R.string.average_extra_data, extraData / extraDataCount);
+                return context.getString(R.string.average_extra_data,
+                        statistics.extraDataSum / statistics.extraDataCount);
             }
         } else if (summaryMethod.equals(
                 context.getString(R.string.preferences_summary_type_count))) {
             return context.getString(R.string.data_summary_count, count,
-                                     dateFormat.format(firstStartTime.getTime()));
+                                     dateFormat.format(new Date(statistics.firstStartMillis)));
         } else if (summaryMethod.equals(
                 context.getString(R.string.preferences_summary_type_frequency))) {
             // The frequency can only be calculated if there is more than 1 occurrence
@@ -166,15 +136,13 @@ class DataSummary {
                 return context.getString(R.string.data_summary_unknown);
             } else {
                 // Calculate the average frequency
-                int totalPeriod = 0;
-                for (Integer period : periods) {
-                    totalPeriod += period;
-                }
-                int averagePeriod = totalPeriod / (count-1);
-                lastEndTime.add(Calendar.SECOND, averagePeriod);
+                int averagePeriod = (int)(statistics.getTotalPeriodMillis() / 1000) / (count-1);
+                Calendar nextOccurrence = Calendar.getInstance(Locale.getDefault());
+                nextOccurrence.setTimeInMillis(statistics.lastEndMillis);
+                nextOccurrence.add(Calendar.SECOND, averagePeriod);
                 return context.getString(R.string.data_summary_frequency_and_next_occurrence,
                         getTimeText(context, averagePeriod),
-                        dateFormat.format(lastEndTime.getTime()));
+                        dateFormat.format(nextOccurrence.getTime()));
             }
         } else {
             return context.getString(R.string.data_summary_unknown);
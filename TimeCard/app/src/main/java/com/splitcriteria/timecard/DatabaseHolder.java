@@ -0,0 +1,181 @@
+package com.splitcriteria.timecard;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Timecard - Allows users to easily track time-based data for analysis.
+ * Copyright (C) 2017  Nicholas Johnson
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Timecard - Copyright (C) 2017  Nicholas Johnson
+ *
+ * This program comes with ABSOLUTELY NO WARRANTY; for details type `show w'.
+ * This is free software, and you are welcome to redistribute it
+ * under certain conditions; type `show c' for details.
+ *
+ * Keeps one open connection to each database for the whole process, so that clients
+ * don't pay for opening and closing the database on every use. Clients acquire the
+ * database and release it when they are finished. Once every client has released it,
+ * the database is closed after a period of inactivity. Write-ahead logging is enabled,
+ * so readers don't block the writer (or each other). The statements of hot paths can
+ * also be compiled once per connection and reused.
+ */
+
+class DatabaseHolder {
+
+    private static final long IDLE_TIMEOUT_MILLIS = 30000;
+
+    interface OpenHelperFactory {
+        /**
+         * Creates the SQLiteOpenHelper of a database
+         *
+         * @param context   the application Context
+         * @param dbName    the database name
+         * @return  a new SQLiteOpenHelper
+         */
+        SQLiteOpenHelper create(Context context, String dbName);
+    }
+
+    // The open databases, keyed by database name
+    private static final Map<String, DatabaseHolder> sHolders = new HashMap<>();
+    private static final Handler sHandler = new Handler(Looper.getMainLooper());
+
+    private final String mDatabaseName;
+    private final SQLiteOpenHelper mOpenHelper;
+    private final SQLiteDatabase mDatabase;
+    private int mReferences;
+    // The compiled statements, keyed by their SQL
+    private final Map<String, SQLiteStatement> mStatements = new HashMap<>();
+
+    private final Runnable mIdleClose = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (sHolders) {
+                if (mReferences == 0 && sHolders.get(mDatabaseName) == DatabaseHolder.this) {
+                    closeLocked();
+                }
+            }
+        }
+    };
+
+    private DatabaseHolder(String dbName, SQLiteOpenHelper openHelper) {
+        mDatabaseName = dbName;
+        mOpenHelper = openHelper;
+        mOpenHelper.setWriteAheadLoggingEnabled(true);
+        mDatabase = mOpenHelper.getWritableDatabase();
+    }
+
+    /**
+     * Returns the shared connection to a database, opening it if necessary. Every call
+     * must be matched by a call to release().
+     *
+     * @param context   a Context
+     * @param dbName    the database name
+     * @param factory   creates the database's SQLiteOpenHelper, if it isn't already open
+     * @return  the open database
+     */
+    static SQLiteDatabase acquire(Context context, String dbName, OpenHelperFactory factory) {
+        synchronized (sHolders) {
+            DatabaseHolder holder = sHolders.get(dbName);
+            if (holder == null) {
+                Context applicationContext = context.getApplicationContext();
+                holder = new DatabaseHolder(
+                        dbName, factory.create(applicationContext, dbName));
+                sHolders.put(dbName, holder);
+            }
+            holder.mReferences++;
+            sHandler.removeCallbacks(holder.mIdleClose);
+            return holder.mDatabase;
+        }
+    }
+
+    /**
+     * Releases a database acquired with acquire(). The database is closed once it has
+     * not been acquired for a while.
+     *
+     * @param dbName    the database name
+     */
+    static void release(String dbName) {
+        synchronized (sHolders) {
+            DatabaseHolder holder = sHolders.get(dbName);
+            if (holder != null && holder.mReferences > 0 && --holder.mReferences == 0) {
+                sHandler.postDelayed(holder.mIdleClose, IDLE_TIMEOUT_MILLIS);
+            }
+        }
+    }
+
+    /**
+     * Returns a compiled statement for an open database, compiling it on first use. The
+     * statement is shared by every client of the database, so it must only be bound and
+     * executed inside a transaction (which keeps other threads from using it at the
+     * same time). The statement is closed along with the database.
+     *
+     * @param dbName    the database name, which must be acquired by the caller
+     * @param sql       the SQL of the statement, with bind parameters for all its values
+     * @return  the compiled statement
+     */
+    static SQLiteStatement getStatement(String dbName, String sql) {
+        synchronized (sHolders) {
+            DatabaseHolder holder = sHolders.get(dbName);
+            if (holder == null) {
+                throw new RuntimeException("Database '" + dbName + "' is not open");
+            }
+            SQLiteStatement statement = holder.mStatements.get(sql);
+            if (statement == null) {
+                statement = holder.mDatabase.compileStatement(sql);
+                holder.mStatements.put(sql, statement);
+            }
+            return statement;
+        }
+    }
+
+    /**
+     * Closes a database immediately, which also checkpoints its write-ahead log into
+     * the database file. This must be called before the database file is copied or
+     * replaced, while no client has the database acquired.
+     *
+     * @param dbName    the database name
+     * @return  true, if the database is closed; false if a client still has it acquired
+     */
+    static boolean close(String dbName) {
+        synchronized (sHolders) {
+            DatabaseHolder holder = sHolders.get(dbName);
+            if (holder != null) {
+                if (holder.mReferences > 0) {
+                    return false;
+                }
+                holder.closeLocked();
+            }
+            return true;
+        }
+    }
+
+    private void closeLocked() {
+        sHandler.removeCallbacks(mIdleClose);
+        sHolders.remove(mDatabaseName);
+        for (SQLiteStatement statement : mStatements.values()) {
+            statement.close();
+        }
+        mStatements.clear();
+        mOpenHelper.close();
+    }
+}
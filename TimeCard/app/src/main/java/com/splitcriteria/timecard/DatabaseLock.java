@@ -2,6 +2,12 @@ package com.splitcriteria.timecard;
 
 import android.content.Context;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+
 /**
  * Timecard - Allows users to easily track time-based data for analysis.
  * Copyright (C) 2017  Nicholas Johnson
@@ -24,28 +30,102 @@ import android.content.Context;
  * This is free software, and you are welcome to redistribute it
  * under certain conditions; type `show c' for details.
  *
- * Provides a customized PersistentSemaphore which specifically targets
- * Timecard database and the clients which exclusively use it (i.e. RestoreService,
- * BackupService, and ProjectData)
+ * Provides a lock on the Timecard database for the clients which use it (i.e.
+ * RestoreService and ProjectData, through which backups read the database). The lock is
+ * held by one lock source at a time, which can acquire it any number of times, and holds
+ * it until every acquisition is released. The lock state is kept in memory, so it can't
+ * outlive the process. Restores also hold a file lock, which excludes other processes
+ * and is released by the system if the process dies.
  */
 
 class DatabaseLock {
 
-    private static final String KEY = "database.semaphore";
+    private static final String LOCK_FILENAME = "database.lock";
 
     static final String RESTORE = "restore";
-    static final String BACKUP = "backup";
     static final String DATABASE = "database";
 
+    private static final Object sLock = new Object();
+    private static String sOwner;
+    private static int sPermits;
+    private static RandomAccessFile sLockFile;
+    private static FileLock sFileLock;
+
+    /**
+     * Acquires the lock for a lock source. This method returns immediately.
+     *
+     * @param context       a Context
+     * @param lockSource    one of RESTORE or DATABASE
+     * @return  true, if the lock was acquired
+     */
     static boolean acquire(Context context, String lockSource) {
-        return new PersistentSemaphore(context).acquire(KEY, lockSource);
+        synchronized (sLock) {
+            if (sPermits == 0) {
+                // Restores must exclude other processes too
+                if (!DATABASE.equals(lockSource) && !lockFile(context)) {
+                    return false;
+                }
+                sOwner = lockSource;
+            } else if (!sOwner.equals(lockSource)) {
+                return false;
+            }
+            sPermits++;
+            return true;
+        }
     }
 
+    /**
+     * Releases the lock acquired by a lock source
+     *
+     * @param context       a Context
+     * @param lockSource    one of RESTORE or DATABASE
+     * @return  true, if the lock was released (or wasn't held at all)
+     */
     static boolean release(Context context, String lockSource) {
-        return new PersistentSemaphore(context).release(KEY, lockSource);
+        synchronized (sLock) {
+            if (sPermits == 0) {
+                // No permits acquired, but they're available -- return success
+                return true;
+            } else if (!sOwner.equals(lockSource)) {
+                return false;
+            }
+            if (--sPermits == 0) {
+                sOwner = null;
+                unlockFile();
+            }
+            return true;
+        }
+    }
+
+    private static boolean lockFile(Context context) {
+        try {
+            sLockFile = new RandomAccessFile(
+                    new File(context.getFilesDir(), LOCK_FILENAME), "rw");
+            sFileLock = sLockFile.getChannel().tryLock();
+            if (sFileLock != null) {
+                return true;
+            }
+        } catch (IOException exception) {
+            // Treat the file as locked
+        } catch (OverlappingFileLockException exception) {
+            // The file is already locked by this process
+        }
+        unlockFile();
+        return false;
     }
 
-    static boolean forceRelease(Context context) {
-        return new PersistentSemaphore(context).forceRelease(KEY);
+    private static void unlockFile() {
+        try {
+            if (sFileLock != null) {
+                sFileLock.release();
+            }
+            if (sLockFile != null) {
+                sLockFile.close();
+            }
+        } catch (IOException exception) {
+            // Closing the file releases the lock regardless
+        }
+        sFileLock = null;
+        sLockFile = null;
     }
-}
\ No newline at end of file
+}
@@ -133,6 +133,7 @@ public class EditFragment extends ResultFragment implements
                                         ProjectData projectData = new ProjectData(context);
                                         projectData.deleteRow(mProjectName, row.id);
                                         projectData.close(context);
+                                        mAdapter.onRowDeleted(row.id);
                                     }
                                     super.onDismissed(transientBottomBar, event);
                                 }
@@ -153,9 +154,7 @@ public class EditFragment extends ResultFragment implements
     }
 
     private void refreshRows() {
-        ProjectData projectData = new ProjectData(getActivity());
-        mAdapter = new RowAdapter(projectData.getRows(mProjectName));
-        projectData.close(getActivity());
+        mAdapter = new RowAdapter(new RowPager(getActivity(), mProjectName));
         mAdapter.addOnRowClickListener(this);
         mRecyclerView.swapAdapter(mAdapter, true);
         mRowItemTouchHelper.attachToRecyclerView(mRecyclerView);
@@ -233,6 +232,10 @@ public class EditFragment extends ResultFragment implements
             Bundle extras = intent.getBundleExtra(ResultFragment.EXTRA_BUNDLE);
             int position = extras.getInt(KEY_POSITION);
             ProjectData.Row row = mAdapter.getRow(position);
+            if (row == null) {
+                // The row was deleted while the dialog was shown
+                return;
+            }
             switch (requestCode) {
                 case REQUEST_CODE_PICK_START_DATE:
                 case REQUEST_CODE_PICK_END_DATE:
@@ -268,8 +271,8 @@ public class EditFragment extends ResultFragment implements
             ProjectData projectData = new ProjectData(getActivity());
             projectData.updateRow(mProjectName, row);
             projectData.close(getActivity());
-            // Notify the adapter of the update so it can refresh itself
-            mAdapter.notifyItemChanged(position);
+            // Update the adapter, which refreshes itself
+            mAdapter.setRow(position, row);
         }
     }
 
@@ -57,9 +57,6 @@ public class MainActivity extends AppCompatActivity
         // Set the default preferences
         PreferenceManager.setDefaultValues(this, R.xml.preferences, false);
 
-        // Release any unresolved database locks
-        DatabaseLock.forceRelease(this);
-
         // Add the project list fragment if it doesn't exist
         mProjectListFragment = (ProjectListFragment)getFragmentManager()
                 .findFragmentByTag(TAG_PROJECT_LIST_FRAGMENT);
@@ -120,6 +117,12 @@ public class MainActivity extends AppCompatActivity
             // User wants to see the archived projects and they're not already shown
             mProjectListFragment.showArchivedProjects(true);
             refreshToolbarTitle();
+        } else if (id == R.id.clock_out_all) {
+            // The receiver clocks out of every clocked in project in one transaction
+            sendBroadcast(new ProjectReceiver.IntentBuilder(this, null)
+                                  .setAction(ProjectReceiver.ACTION_CLOCK_BATCH)
+                                  .setClockOutAll(true)
+                                  .build());
         } else if (id == R.id.settings) {
             startActivity(new Intent(this, SettingsActivity.class));
         }
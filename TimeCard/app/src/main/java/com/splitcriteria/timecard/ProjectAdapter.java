@@ -1,8 +1,10 @@
 package com.splitcriteria.timecard;
 
 import android.content.Context;
+import android.os.AsyncTask;
 import android.os.Handler;
 import android.os.Message;
+import android.support.v7.util.DiffUtil;
 import android.support.v7.widget.CardView;
 import android.support.v7.widget.RecyclerView;
 import android.view.LayoutInflater;
@@ -15,7 +17,12 @@ import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Future;
 
 /**
  * Timecard - Allows users to easily track time-based data for analysis.
@@ -40,11 +47,18 @@ import java.util.List;
  * under certain conditions; type `show c' for details.
  *
  * A RecyclerView.Adapter which holds project names and displays them using
- * the card_project layout.
+ * the card_project layout. The projects are loaded in the background, and each load
+ * is diffed against the current list. The data summaries are computed lazily by
+ * SummaryExecutor when a project is bound (or is about to be), and each card is updated
+ * as its summary arrives. While attached
+ * to a RecyclerView, the adapter listens for ProjectEvents and updates only the projects
+ * which changed. The data summaries of visible, clocked in projects are ticked once per
+ * second from their cached statistics.
  */
 
 class ProjectAdapter extends RecyclerView.Adapter<ProjectAdapter.ViewHolder> implements
-        View.OnClickListener {
+        View.OnClickListener, ProjectEvents.OnProjectChangedListener,
+        SummaryExecutor.OnSummaryListener {
 
     interface OnProjectClickedListener {
         void onClockInOutClicked(String projectName);
@@ -53,6 +67,8 @@ class ProjectAdapter extends RecyclerView.Adapter<ProjectAdapter.ViewHolder> imp
 
     private static final int UPDATE_SUMMARIES = 0;
     private static final long UPDATE_RATE_MILLIS = 1000;
+    // The number of projects past a bound project whose summaries are computed ahead
+    private static final int SUMMARY_PREFETCH_COUNT = 4;
 
     private Comparator<DataGroup> mIgnoreCaseComparator = new Comparator<DataGroup>() {
                 @Override
@@ -65,12 +81,26 @@ class ProjectAdapter extends RecyclerView.Adapter<ProjectAdapter.ViewHolder> imp
 
     private static class DataGroup {
         ProjectData.ExtendedMetadata extendedMetadata;
-        TextView summary;
     }
 
     private WeakReference<Context> mContextRef;
+    // The database the projects are read from
+    private String mDatabaseName;
+    // Incremented whenever mProjects changes, so that a load started before the change
+    // isn't applied over it
+    private int mProjectsVersion;
+    private ProjectLoader mProjectLoader;
+    // Projects which were removed by the user but may still be restored (e.g. by undo)
+    private Set<String> mHiddenProjects = new HashSet<>();
+    // The summaries being computed, by project name
+    private Map<String, Future<?>> mSummaryTasks = new HashMap<>();
+    // The RecyclerView this adapter is attached to, or null if detached
+    private RecyclerView mRecyclerView;
+    private boolean mPaused;
     private List<DataGroup> mProjects;
     private List<OnProjectClickedListener> mListeners = new ArrayList<>();
+    // The archived state of the projects shown, or null if all projects are shown
+    private Boolean mArchived;
 
     static class ViewHolder extends RecyclerView.ViewHolder {
         CardView mCardView;
@@ -101,70 +131,334 @@ class ProjectAdapter extends RecyclerView.Adapter<ProjectAdapter.ViewHolder> imp
             if (msg.what == UPDATE_SUMMARIES) {
                 ProjectAdapter projectAdapter = mAdapter.get();
                 if (projectAdapter != null) {
-                    Context context = projectAdapter.mContextRef.get();
-                    boolean updatedSummary = false;
-                    if (context != null) {
-                        // Refresh the metadata of the projects
-                        ProjectData projectData = new ProjectData(context);
-                        // Go through the data groups, check for projects which are clocked in
-                        // and update the data summaries
-                        for (DataGroup dataGroup : projectAdapter.mProjects) {
-                            dataGroup.extendedMetadata = projectData.getProjectExtendedMetadata(
-                                    dataGroup.extendedMetadata.metadata.projectName);
-                            if (dataGroup.extendedMetadata.clockedIn && dataGroup.summary != null) {
-                                dataGroup.summary.setText(dataGroup.extendedMetadata.dataSummary);
-                                updatedSummary = true;
-                            }
-                        }
-                        projectData.close(context);
+                    projectAdapter.updateVisibleSummaries();
+                    projectAdapter.scheduleSummaryUpdate();
+                }
+            }
+        }
+    }
+
+    /**
+     * Loads the projects and diffs them against the adapter's projects in the background.
+     * Only the metadata is loaded, so projects which aren't in the SummaryExecutor cache
+     * have no statistics; their data summaries are computed when they are bound.
+     */
+    private static class ProjectLoader extends AsyncTask<Void, Void, DiffUtil.DiffResult> {
+
+        private WeakReference<ProjectAdapter> mAdapter;
+        private Context mContext;
+        private String mDatabaseName;
+        private Boolean mArchived;
+        private Set<String> mHiddenProjects;
+        private List<DataGroup> mOldProjects;
+        private int mOldProjectsVersion;
+        private List<DataGroup> mNewProjects = new ArrayList<>();
+        private String mLoadingSummary;
+
+        ProjectLoader(ProjectAdapter adapter, Context context) {
+            mAdapter = new WeakReference<>(adapter);
+            mContext = context.getApplicationContext();
+            mDatabaseName = adapter.mDatabaseName;
+            mArchived = adapter.mArchived;
+            // Take copies, since the adapter's lists may change while loading
+            mHiddenProjects = new HashSet<>(adapter.mHiddenProjects);
+            mOldProjects = new ArrayList<>(adapter.mProjects);
+            mOldProjectsVersion = adapter.mProjectsVersion;
+            mLoadingSummary = context.getString(R.string.data_summary_loading);
+        }
+
+        @Override
+        protected DiffUtil.DiffResult doInBackground(Void... voids) {
+            // Show the previous summaries until the new ones are computed
+            Map<String, String> oldSummaries = new HashMap<>();
+            for (DataGroup dataGroup : mOldProjects) {
+                oldSummaries.put(dataGroup.extendedMetadata.metadata.projectName,
+                                 dataGroup.extendedMetadata.dataSummary);
+            }
+            ProjectData projectData = new ProjectData(mContext, mDatabaseName);
+            for (boolean archived : new boolean[] {true, false}) {
+                if (mArchived != null && mArchived != archived) {
+                    continue;
+                }
+                for (String projectName : projectData.getProjectNames(archived)) {
+                    if (isCancelled()) {
+                        projectData.close(mContext);
+                        return null;
+                    }
+                    if (mHiddenProjects.contains(projectName)) {
+                        continue;
                     }
-                    // If there were data summary updates, then call this handler again
-                    // if there's not another pending message waiting to be called
-                    if (updatedSummary && !hasMessages(UPDATE_SUMMARIES)) {
-                        sendEmptyMessageDelayed(UPDATE_SUMMARIES, UPDATE_RATE_MILLIS);
+                    ProjectData.ExtendedMetadata cached =
+                            SummaryExecutor.getCached(mDatabaseName, projectName);
+                    if (cached != null) {
+                        DataGroup dataGroup = new DataGroup();
+                        dataGroup.extendedMetadata = cached;
+                        mNewProjects.add(dataGroup);
+                        continue;
+                    }
+                    ProjectData.Metadata metadata = projectData.getProjectMetadata(projectName);
+                    if (metadata != null) {
+                        DataGroup dataGroup = new DataGroup();
+                        dataGroup.extendedMetadata = new ProjectData.ExtendedMetadata();
+                        dataGroup.extendedMetadata.metadata = metadata;
+                        dataGroup.extendedMetadata.clockedIn = metadata.currentTimecard != -1;
+                        String oldSummary = oldSummaries.get(projectName);
+                        dataGroup.extendedMetadata.dataSummary =
+                                oldSummary != null ? oldSummary : mLoadingSummary;
+                        mNewProjects.add(dataGroup);
                     }
                 }
             }
+            projectData.close(mContext);
+            ProjectAdapter adapter = mAdapter.get();
+            if (adapter == null) {
+                return null;
+            }
+            Collections.sort(mNewProjects, adapter.mIgnoreCaseComparator);
+            return DiffUtil.calculateDiff(new ProjectDiffCallback(mOldProjects, mNewProjects));
+        }
+
+        @Override
+        protected void onPostExecute(DiffUtil.DiffResult diffResult) {
+            ProjectAdapter adapter = mAdapter.get();
+            if (adapter == null || diffResult == null || adapter.mProjectLoader != this) {
+                return;
+            }
+            adapter.mProjectLoader = null;
+            if (adapter.mProjectsVersion != mOldProjectsVersion) {
+                // The projects changed while loading, so the loaded projects may
+                // already be out of date
+                adapter.reload();
+                return;
+            }
+            adapter.mProjects = mNewProjects;
+            adapter.mProjectsVersion++;
+            adapter.cancelSummaries();
+            diffResult.dispatchUpdatesTo(adapter);
+            adapter.scheduleSummaryUpdate();
+        }
+    }
+
+    private static class ProjectDiffCallback extends DiffUtil.Callback {
+
+        private List<DataGroup> mOldProjects;
+        private List<DataGroup> mNewProjects;
+
+        ProjectDiffCallback(List<DataGroup> oldProjects, List<DataGroup> newProjects) {
+            mOldProjects = oldProjects;
+            mNewProjects = newProjects;
+        }
+
+        @Override
+        public int getOldListSize() {
+            return mOldProjects.size();
+        }
+
+        @Override
+        public int getNewListSize() {
+            return mNewProjects.size();
+        }
+
+        @Override
+        public boolean areItemsTheSame(int oldItemPosition, int newItemPosition) {
+            return mOldProjects.get(oldItemPosition).extendedMetadata.metadata.projectName
+                    .equals(mNewProjects.get(newItemPosition)
+                                    .extendedMetadata.metadata.projectName);
+        }
+
+        @Override
+        public boolean areContentsTheSame(int oldItemPosition, int newItemPosition) {
+            ProjectData.ExtendedMetadata oldMetadata =
+                    mOldProjects.get(oldItemPosition).extendedMetadata;
+            ProjectData.ExtendedMetadata newMetadata =
+                    mNewProjects.get(newItemPosition).extendedMetadata;
+            // Clocked in summaries are ticked locally, so they don't need to be rebound
+            return oldMetadata.metadata.displayName.equals(newMetadata.metadata.displayName) &&
+                    oldMetadata.clockedIn == newMetadata.clockedIn &&
+                    (newMetadata.clockedIn ||
+                            oldMetadata.dataSummary.equals(newMetadata.dataSummary));
         }
     }
 
     private SummaryUpdateHandler mSummaryUpdateHandler = new SummaryUpdateHandler(this);
 
     ProjectAdapter(Context context) {
-        mContextRef = new WeakReference<>(context);
-        mProjects = new ArrayList<>();
-        ProjectData projectData = new ProjectData(context);
-        // Add both archived and non-archived projects to the project list
-        DataGroup dataGroup;
-        for (String projectName : projectData.getProjectNames(true)) {
-            dataGroup = new DataGroup();
-            dataGroup.extendedMetadata = projectData.getProjectExtendedMetadata(projectName);
-            mProjects.add(dataGroup);
-        }
-        for (String projectName : projectData.getProjectNames(false)) {
-            dataGroup = new DataGroup();
-            dataGroup.extendedMetadata = projectData.getProjectExtendedMetadata(projectName);
-            mProjects.add(dataGroup);
-        }
-        projectData.close(context);
-        // Sort the list
-        Collections.sort(mProjects, mIgnoreCaseComparator);
+        this(context, null);
     }
 
-    ProjectAdapter(Context context, boolean archived) {
+    /**
+     * Creates an empty adapter, and starts loading its projects in the background
+     *
+     * @param context   a Context
+     * @param archived  the archived state of the projects to show, or null for all projects
+     */
+    ProjectAdapter(Context context, Boolean archived) {
         mContextRef = new WeakReference<>(context);
+        mDatabaseName = context.getString(R.string.default_database_filename);
+        mArchived = archived;
         mProjects = new ArrayList<>();
-        ProjectData projectData = new ProjectData(context);
-        // Add both archived and non-archived projects to the project list
-        DataGroup dataGroup;
-        for (String projectName : projectData.getProjectNames(archived)) {
-            dataGroup = new DataGroup();
-            dataGroup.extendedMetadata = projectData.getProjectExtendedMetadata(projectName);
-            mProjects.add(dataGroup);
-        }
-        projectData.close(context);
-        // Sort the list
-        Collections.sort(mProjects, mIgnoreCaseComparator);
+        reload();
+    }
+
+    /**
+     * Reloads the projects in the background, replacing any load in progress. Only the
+     * projects which changed are updated once the load finishes.
+     */
+    void reload() {
+        Context context = mContextRef.get();
+        if (context == null) {
+            return;
+        }
+        if (mProjectLoader != null) {
+            mProjectLoader.cancel(false);
+        }
+        mProjectLoader = new ProjectLoader(this, context);
+        mProjectLoader.execute();
+    }
+
+    /**
+     * Changes which projects are shown, and reloads the projects
+     *
+     * @param archived  the archived state of the projects to show, or null for all projects
+     */
+    void setArchived(Boolean archived) {
+        mArchived = archived;
+        mHiddenProjects.clear();
+        reload();
+    }
+
+    @Override
+    public void onAttachedToRecyclerView(RecyclerView recyclerView) {
+        super.onAttachedToRecyclerView(recyclerView);
+        mRecyclerView = recyclerView;
+        ProjectEvents.addListener(this);
+        scheduleSummaryUpdate();
+    }
+
+    @Override
+    public void onDetachedFromRecyclerView(RecyclerView recyclerView) {
+        super.onDetachedFromRecyclerView(recyclerView);
+        mRecyclerView = null;
+        ProjectEvents.removeListener(this);
+        mSummaryUpdateHandler.removeMessages(UPDATE_SUMMARIES);
+        if (mProjectLoader != null) {
+            mProjectLoader.cancel(false);
+            mProjectLoader = null;
+        }
+        cancelSummaries();
+    }
+
+    /**
+     * Makes sure the data summary of a project is available or being computed
+     *
+     * @param position  the position of the project
+     * @param prefetch  true if the project isn't being bound, in which case a cached
+     *                  summary is left in the cache until it is
+     */
+    private void requestSummary(int position, boolean prefetch) {
+        DataGroup dataGroup = mProjects.get(position);
+        if (dataGroup.extendedMetadata.statistics != null) {
+            return;
+        }
+        String projectName = dataGroup.extendedMetadata.metadata.projectName;
+        ProjectData.ExtendedMetadata cached =
+                SummaryExecutor.getCached(mDatabaseName, projectName);
+        if (cached != null) {
+            if (!prefetch) {
+                dataGroup.extendedMetadata = cached;
+            }
+            return;
+        }
+        Context context = mContextRef.get();
+        if (context != null && !mSummaryTasks.containsKey(projectName)) {
+            mSummaryTasks.put(projectName,
+                              SummaryExecutor.submit(context, mDatabaseName, projectName, this));
+        }
+    }
+
+    private void cancelSummaries() {
+        for (Future<?> summaryTask : mSummaryTasks.values()) {
+            summaryTask.cancel(false);
+        }
+        mSummaryTasks.clear();
+    }
+
+    @Override
+    public void onSummary(String projectName, ProjectData.ExtendedMetadata extendedMetadata) {
+        mSummaryTasks.remove(projectName);
+        int position = getPosition(projectName);
+        if (extendedMetadata == null || position == -1) {
+            return;
+        }
+        DataGroup dataGroup = mProjects.get(position);
+        // A ProjectEvent may have already brought the project up to date
+        if (dataGroup.extendedMetadata.statistics != null) {
+            return;
+        }
+        dataGroup.extendedMetadata = extendedMetadata;
+        notifyItemChanged(position);
+        scheduleSummaryUpdate();
+    }
+
+    /**
+     * Stops or restarts updating the data summaries of clocked in projects, e.g. while
+     * the fragment showing them is paused
+     *
+     * @param paused    true to stop updating the data summaries
+     */
+    void setPaused(boolean paused) {
+        mPaused = paused;
+        if (paused) {
+            mSummaryUpdateHandler.removeMessages(UPDATE_SUMMARIES);
+        } else {
+            // The summaries weren't updated while paused
+            updateVisibleSummaries();
+            scheduleSummaryUpdate();
+        }
+    }
+
+    /**
+     * Schedules the next data summary update, if there's a visible project to update
+     */
+    private void scheduleSummaryUpdate() {
+        mSummaryUpdateHandler.removeMessages(UPDATE_SUMMARIES);
+        if (mRecyclerView == null || mPaused) {
+            return;
+        }
+        for (DataGroup dataGroup : mProjects) {
+            if (dataGroup.extendedMetadata.clockedIn) {
+                mSummaryUpdateHandler.sendEmptyMessageDelayed(
+                        UPDATE_SUMMARIES, UPDATE_RATE_MILLIS);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Updates the data summaries of the clocked in projects which are bound to a
+     * ViewHolder, using only their cached statistics
+     */
+    private void updateVisibleSummaries() {
+        Context context = mContextRef.get();
+        if (context == null || mRecyclerView == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < mRecyclerView.getChildCount(); i++) {
+            ViewHolder holder = (ViewHolder)mRecyclerView.getChildViewHolder(
+                    mRecyclerView.getChildAt(i));
+            int position = holder.getAdapterPosition();
+            if (position == RecyclerView.NO_POSITION) {
+                continue;
+            }
+            ProjectData.ExtendedMetadata extendedMetadata =
+                    mProjects.get(position).extendedMetadata;
+            if (extendedMetadata.clockedIn) {
+                extendedMetadata.dataSummary =
+                        DataSummary.getSummary(context, extendedMetadata, now);
+                holder.mSummary.setText(extendedMetadata.dataSummary);
+            }
+        }
     }
 
     @Override
@@ -176,13 +470,20 @@ class ProjectAdapter extends RecyclerView.Adapter<ProjectAdapter.ViewHolder> imp
 
     @Override
     public void onBindViewHolder(ViewHolder holder, int position) {
+        // Compute the summaries of this project and the next few on demand
+        requestSummary(position, false);
+        int prefetchEnd = Math.min(position + SUMMARY_PREFETCH_COUNT, mProjects.size() - 1);
+        for (int i = position + 1; i <= prefetchEnd; i++) {
+            requestSummary(i, true);
+        }
         DataGroup dataGroup = mProjects.get(position);
-        dataGroup.summary = holder.mSummary;
-        // If the summary update handler doesn't have any messages waiting for it
-        // then add an update message
-        if (dataGroup.extendedMetadata.clockedIn &&
-                !mSummaryUpdateHandler.hasMessages(UPDATE_SUMMARIES)) {
-            mSummaryUpdateHandler.sendEmptyMessageDelayed(UPDATE_SUMMARIES, UPDATE_RATE_MILLIS);
+        // Bring the summary of a clocked in project up to date before showing it
+        if (dataGroup.extendedMetadata.clockedIn) {
+            Context context = mContextRef.get();
+            if (context != null) {
+                dataGroup.extendedMetadata.dataSummary = DataSummary.getSummary(
+                        context, dataGroup.extendedMetadata, System.currentTimeMillis());
+            }
         }
         holder.mSummary.setText(dataGroup.extendedMetadata.dataSummary);
         holder.mProjectName.setText(dataGroup.extendedMetadata.metadata.displayName);
@@ -196,13 +497,11 @@ class ProjectAdapter extends RecyclerView.Adapter<ProjectAdapter.ViewHolder> imp
 
     @Override
     public void onViewRecycled(ViewHolder holder) {
-        // This ViewHolder is being recycled, so remove the Summary text reference
-        // from the DataGroup. This way, the SummaryUpdateHandler won't try to update
-        // a recycled reference
-        int position = holder.getAdapterPosition();
-        if (position != RecyclerView.NO_POSITION) {
-            DataGroup dataGroup = mProjects.get(position);
-            dataGroup.summary = null;
+        // Don't compute a summary which is no longer going to be shown
+        String projectName = (String)holder.mSettings.getTag(R.id.project_name);
+        Future<?> summaryTask = projectName != null ? mSummaryTasks.remove(projectName) : null;
+        if (summaryTask != null) {
+            summaryTask.cancel(false);
         }
     }
 
@@ -216,8 +515,31 @@ class ProjectAdapter extends RecyclerView.Adapter<ProjectAdapter.ViewHolder> imp
                 mProjects.get(adapterPosition).extendedMetadata.metadata.projectName : null;
     }
 
+    /**
+     * Hides a project until it is restored, e.g. while the user may still undo
+     * archiving or deleting it
+     *
+     * @param adapterPosition   the position of the project
+     */
     void remove(int adapterPosition) {
+        mHiddenProjects.add(mProjects.get(adapterPosition).extendedMetadata.metadata.projectName);
+        removeAt(adapterPosition);
+    }
+
+    /**
+     * Shows a project again after it was removed
+     *
+     * @param projectName   the project name
+     */
+    void restore(String projectName) {
+        if (mHiddenProjects.remove(projectName)) {
+            reload();
+        }
+    }
+
+    private void removeAt(int adapterPosition) {
         mProjects.remove(adapterPosition);
+        mProjectsVersion++;
         notifyItemRemoved(adapterPosition);
     }
 
@@ -231,50 +553,79 @@ class ProjectAdapter extends RecyclerView.Adapter<ProjectAdapter.ViewHolder> imp
         return -1;
     }
 
-    /**
-     * Forces the adapter to update a project's data from the Project database
-     *
-     * @param projectName   the project name
-     * @return  true, if the update was successful
-     */
-    boolean updateProject(String projectName) {
+    @Override
+    public void onProjectChanged(ProjectEvents.Event event) {
         Context context = mContextRef.get();
-        if (context == null) {
-            throw new RuntimeException("Unable to update project adapter: no Context.");
+        if (context == null || !mDatabaseName.equals(event.databaseName)) {
+            return;
         }
-        int position = getPosition(projectName);
+        if (event.type == ProjectEvents.DATABASE_REPLACED) {
+            mHiddenProjects.clear();
+            reload();
+            return;
+        }
+        int position = getPosition(event.projectName);
+        // Remove projects which were deleted, or no longer belong in this adapter
+        if (event.metadata == null ||
+                (mArchived != null && mArchived != event.metadata.archived)) {
+            mHiddenProjects.remove(event.projectName);
+            if (position != -1) {
+                removeAt(position);
+            }
+            return;
+        }
+        if (mHiddenProjects.contains(event.projectName)) {
+            return;
+        }
+        ProjectData.ExtendedMetadata extendedMetadata = ProjectData.createExtendedMetadata(
+                context, event.metadata, event.statistics);
+        SummaryExecutor.putCached(mDatabaseName, event.projectName, event.version,
+                                  extendedMetadata);
         if (position == -1) {
-            return false;
+            insert(extendedMetadata);
+        } else {
+            update(position, extendedMetadata);
         }
-        ProjectData projectData = new ProjectData(context);
-        mProjects.get(position).extendedMetadata =
-                projectData.getProjectExtendedMetadata(projectName);
-        projectData.close(context);
-        notifyItemChanged(position);
-        return true;
     }
 
-    public void add(Context context, String projectName) {
-        // Add the project name (list is now unsorted)
-        ProjectData projectData = new ProjectData(context);
+    /**
+     * Replaces the extended metadata of a project, moving it if its display name has
+     * changed
+     *
+     * @param position          the position of the project
+     * @param extendedMetadata  the new extended metadata
+     */
+    private void update(int position, ProjectData.ExtendedMetadata extendedMetadata) {
+        DataGroup dataGroup = mProjects.get(position);
+        dataGroup.extendedMetadata = extendedMetadata;
+        mProjectsVersion++;
+        // Keep the list sorted
+        Collections.sort(mProjects, mIgnoreCaseComparator);
+        int newPosition = mProjects.indexOf(dataGroup);
+        if (newPosition != position) {
+            notifyItemMoved(position, newPosition);
+        }
+        notifyItemChanged(newPosition);
+        // The project may have been clocked in or out
+        scheduleSummaryUpdate();
+    }
+
+    private void insert(ProjectData.ExtendedMetadata extendedMetadata) {
         DataGroup dataGroup = new DataGroup();
-        dataGroup.extendedMetadata = projectData.getProjectExtendedMetadata(projectName);
+        dataGroup.extendedMetadata = extendedMetadata;
         mProjects.add(dataGroup);
-        projectData.close(context);
+        mProjectsVersion++;
         // Sort the project names, ignoring the case
         Collections.sort(mProjects, mIgnoreCaseComparator);
-        // Get the position of the newly inserted item
-        int position = getPosition(projectName);
         // Notify listeners of the newly inserted item
-        notifyItemInserted(position);
+        notifyItemInserted(mProjects.indexOf(dataGroup));
+        scheduleSummaryUpdate();
     }
 
     @Override
     public void onClick(View view) {
         // Get the project information based on the Project name (saved in the tag)
         String projectName = (String)view.getTag(R.id.project_name);
-        int position = getPosition(projectName);
-        DataGroup dataGroup = mProjects.get(position);
         int id = view.getId();
         if (id == R.id.project_clock_in_out) {
             for (OnProjectClickedListener listener : mListeners) {
@@ -285,12 +636,7 @@ class ProjectAdapter extends RecyclerView.Adapter<ProjectAdapter.ViewHolder> imp
                 listener.onSettingsClicked(view, projectName);
             }
         }
-        // Re-pull the project's metadata after all the listeners have been
-        // called (in case the metadata changed)
-        Context context = mContextRef.get();
-        if (context != null) {
-            mSummaryUpdateHandler.sendEmptyMessageDelayed(UPDATE_SUMMARIES, UPDATE_RATE_MILLIS);
-        }
+        // Any change to the project's metadata is received as a ProjectEvent
     }
 
     void addOnProjectClickedListener(OnProjectClickedListener listener) {
@@ -302,4 +648,4 @@ class ProjectAdapter extends RecyclerView.Adapter<ProjectAdapter.ViewHolder> imp
     void removeOnProjectClickedListener(OnProjectClickedListener listener) {
         mListeners.remove(listener);
     }
-}
\ No newline at end of file
+}
@@ -3,19 +3,26 @@ package com.splitcriteria.timecard;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.support.annotation.NonNull;
 import android.text.TextUtils;
-import android.util.ArrayMap;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.lang.ref.WeakReference;
-import java.text.ParseException;
+import java.nio.charset.Charset;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -45,17 +52,25 @@ import java.util.Map;
  * Contains methods for access project data which is backed by an SQLite database.
  * Because this class reserves the database resource using DatabaseLock, the client
  * should use close(Context) immediately after finished using the methods within.
+ * The database connection itself is shared through DatabaseHolder, so creating and
+ * closing a ProjectData is cheap.
  */
 
 class ProjectData {
 
-    private ProjectDataOpenHelper mDBHelper;
+    // Process-wide, write-through cache of project metadata. It is keyed by the database
+    // name, and then by the project name. Each database's metadata is loaded once, on
+    // first use, and is then kept in sync by every method which changes the metadata.
+    private static final Map<String, Map<String, Metadata>> sMetadataCache = new HashMap<>();
+
     private SQLiteDatabase mDatabase;
     private WeakReference<Context> mContextRef;
+    private String mDatabaseName;
 
-    private static final int DATABASE_VERSION = 3;
+    static final int DATABASE_VERSION = 8;
     // Projects metadata table name and column names
     private static final String PROJECTS_TABLE = "projects";
+    private static final String PROJECTS_NAME_INDEX = "projects_name";
     private static final String KEY_PROJECT_NAME = "name";
     private static final String KEY_DISPLAY_NAME = "display_name";
     private static final String KEY_ARCHIVED = "archived";
@@ -67,55 +82,225 @@ class ProjectData {
     private static final String KEY_DATA_SUMMARY_METHOD = "data_summary_method";
     private static final String KEY_SUPPRESS_NOTIFICATION = "suppress_notification";
     private static final String KEY_CURRENT_TIMECARD = "current_timecard_row";
-    // Project timecard table column names
+    // Timecard entries table name and column names. The entries of every project are
+    // held in this table, and are tied to their project by the project's rowid. Start
+    // and end times are stored as UTC epoch milliseconds.
+    private static final String ENTRIES_TABLE = "entries";
+    private static final String ENTRIES_PROJECT_START_INDEX = "entries_project_start";
+    private static final String KEY_PROJECT_ID = "project_id";
     private static final String KEY_START_TIME = "start";
     private static final String KEY_END_TIME = "end";
     private static final String KEY_EXTRA_DATA = "extra";
     private static final String[] PROJECT_COLUMNS =
             new String[] {"rowid", KEY_START_TIME, KEY_END_TIME, KEY_EXTRA_DATA};
+    // Project statistics table name and column names. Each project has one row of
+    // aggregates over its entries, which is kept up to date as the entries change.
+    // The times of an ongoing entry are not included, other than its start time.
+    private static final String STATS_TABLE = "project_stats";
+    private static final String KEY_ROW_COUNT = "row_count";
+    private static final String KEY_TOTAL_MILLIS = "total_millis";
+    private static final String KEY_NUMERIC_EXTRA_SUM = "numeric_extra_sum";
+    private static final String KEY_NUMERIC_EXTRA_COUNT = "numeric_extra_count";
+    private static final String KEY_FIRST_START = "first_start";
+    private static final String KEY_LAST_START = "last_start";
+    private static final String KEY_LAST_END = "last_end";
+    private static final String KEY_OPEN_START = "open_start";
+    // Change log table name and column names. Triggers on the projects and entries tables
+    // append the rowid of every changed row, so that a backup can be limited to the rows
+    // changed since the last one. The statistics are derived, so they aren't logged.
+    private static final String CHANGE_LOG_TABLE = "change_log";
+    private static final String KEY_SEQUENCE = "seq";
+    private static final String KEY_TABLE_NAME = "table_name";
+    private static final String KEY_OPERATION = "op";
+    private static final String KEY_ROW_ID = "row_id";
+    private static final String[] LOGGED_TABLES = new String[] {PROJECTS_TABLE, ENTRIES_TABLE};
+    // Record and value types of the changes written by exportChanges()
+    private static final byte CHANGE_DELETED = 0;
+    private static final byte CHANGE_REPLACED = 1;
+    private static final byte VALUE_NULL = 0;
+    private static final byte VALUE_INTEGER = 1;
+    private static final byte VALUE_FLOAT = 2;
+    private static final byte VALUE_STRING = 3;
+    private static final byte VALUE_BLOB = 4;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    // The savepoint which begins a read transaction (see beginReadTransaction())
+    private static final String READ_TRANSACTION = "read_transaction";
+
+    // The statements of the clock in/out path, which are compiled once per connection
+    // (see DatabaseHolder.getStatement()) and only take bind parameters
+    private static final String SQL_INSERT_ENTRY =
+            "INSERT INTO " + ENTRIES_TABLE + " (" +
+                KEY_PROJECT_ID + "," + KEY_START_TIME + "," +
+                KEY_END_TIME + "," + KEY_EXTRA_DATA + ") " +
+            "VALUES (?1,?2,?3,IFNULL(?4,''));";
+    private static final String SQL_CLOSE_ENTRY =
+            "UPDATE " + ENTRIES_TABLE + " SET " + KEY_END_TIME + "=?1 WHERE rowid=?2;";
+    private static final String SQL_ENTRY_START =
+            "SELECT " + KEY_START_TIME + " FROM " + ENTRIES_TABLE + " WHERE rowid=?1;";
+    private static final String SQL_CURRENT_TIMECARD =
+            "SELECT " + KEY_CURRENT_TIMECARD + " FROM " + PROJECTS_TABLE + " WHERE rowid=?1;";
+    private static final String SQL_UPDATE_CURRENT_TIMECARD =
+            "UPDATE " + PROJECTS_TABLE + " SET " + KEY_CURRENT_TIMECARD + "=?1 " +
+            "WHERE rowid=?2 AND " + KEY_CURRENT_TIMECARD + "=?3;";
+    private static final String SQL_CLOCK_IN_STATISTICS =
+            "UPDATE " + STATS_TABLE + " SET " +
+                KEY_ROW_COUNT + "=" + KEY_ROW_COUNT + "+1," +
+                KEY_FIRST_START + "=MIN(IFNULL(" + KEY_FIRST_START + ",?1),?1)," +
+                // The new entry is the last entry, unless an edited entry was moved
+                // into the future
+                KEY_LAST_END + "=CASE WHEN IFNULL(" + KEY_LAST_START + ",?1)<=?1 " +
+                    "THEN ?2 ELSE " + KEY_LAST_END + " END," +
+                KEY_LAST_START + "=MAX(IFNULL(" + KEY_LAST_START + ",?1),?1)," +
+                KEY_OPEN_START + "=CASE WHEN ?2 IS NULL " +
+                    "THEN ?1 ELSE " + KEY_OPEN_START + " END," +
+                KEY_NUMERIC_EXTRA_SUM + "=" + KEY_NUMERIC_EXTRA_SUM + "+" +
+                    "CASE WHEN " + isNumber("?3") + " " +
+                    "THEN CAST(TRIM(?3) AS REAL) ELSE 0 END," +
+                KEY_NUMERIC_EXTRA_COUNT + "=" + KEY_NUMERIC_EXTRA_COUNT + "+" +
+                    "CASE WHEN " + isNumber("?3") + " THEN 1 ELSE 0 END " +
+            "WHERE " + KEY_PROJECT_ID + "=?4;";
+    // If the last entry has no end time, then it's the entry being clocked out
+    private static final String SQL_CLOCK_OUT_STATISTICS =
+            "UPDATE " + STATS_TABLE + " SET " +
+                KEY_TOTAL_MILLIS + "=" + KEY_TOTAL_MILLIS + "+?1-?2," +
+                KEY_LAST_END + "=IFNULL(" + KEY_LAST_END + ",?1)," +
+                KEY_OPEN_START + "=NULL " +
+            "WHERE " + KEY_PROJECT_ID + "=?3;";
 
-    class Metadata {
+    static class Metadata {
         boolean archived;
         boolean trackLocation;
         boolean noDuration;
         boolean suppressNotification;
         boolean usesExtraData;
         String extraDataTitle;
+        int projectId;
         String projectName;
         String displayName;
         String defaultExtraData;
         int currentTimecard;
         String dataSummaryMethod;
+
+        /**
+         * Returns a copy of this Metadata which can be freely modified by the client
+         * without affecting the cached metadata
+         *
+         * @return  a copy of this Metadata
+         */
+        Metadata copy() {
+            Metadata metadata = new Metadata();
+            metadata.archived = archived;
+            metadata.trackLocation = trackLocation;
+            metadata.noDuration = noDuration;
+            metadata.suppressNotification = suppressNotification;
+            metadata.usesExtraData = usesExtraData;
+            metadata.extraDataTitle = extraDataTitle;
+            metadata.projectId = projectId;
+            metadata.projectName = projectName;
+            metadata.displayName = displayName;
+            metadata.defaultExtraData = defaultExtraData;
+            metadata.currentTimecard = currentTimecard;
+            metadata.dataSummaryMethod = dataSummaryMethod;
+            return metadata;
+        }
     }
 
-    class ExtendedMetadata {
+    static class ExtendedMetadata {
         Metadata metadata;
+        Statistics statistics;
 
-        int totalTime;
-        int metadataTime;
         boolean clockedIn;
         String dataSummary;
     }
 
-    class Row {
+    /**
+     * Aggregate values over all the timecard entries of a project, read from the
+     * project statistics table so that a data summary doesn't require loading every Row.
+     * An ongoing timecard entry is counted as ending at queryTime.
+     */
+    static class Statistics {
+        int count;
+        long totalMillis;
+        long firstStartMillis;
+        long lastEndMillis;
+        double extraDataSum;
+        int extraDataCount;
+        long queryTime;
+        // Whether the last entry is ongoing, and if so, when it started
+        boolean open;
+        long openStartMillis;
+
+        /**
+         * Returns a copy of these statistics as they would be at a later time, which is
+         * only different if the last entry is ongoing
+         *
+         * @param time  the time, in milliseconds since the epoch
+         * @return  the Statistics at the time
+         */
+        Statistics atTime(long time) {
+            Statistics statistics = new Statistics();
+            statistics.count = count;
+            statistics.totalMillis = totalMillis;
+            statistics.firstStartMillis = firstStartMillis;
+            statistics.lastEndMillis = lastEndMillis;
+            statistics.extraDataSum = extraDataSum;
+            statistics.extraDataCount = extraDataCount;
+            statistics.queryTime = time;
+            statistics.open = open;
+            statistics.openStartMillis = openStartMillis;
+            if (open) {
+                statistics.totalMillis += time - queryTime;
+                statistics.lastEndMillis = time;
+            }
+            return statistics;
+        }
+
+        /**
+         * Returns the total time between the end of one entry and the start of the next
+         *
+         * @return  the sum of all the gaps between entries, in milliseconds
+         */
+        long getTotalPeriodMillis() {
+            // The gaps telescope to the entire span less the time spent in each entry
+            return count > 1 ? (lastEndMillis - firstStartMillis) - totalMillis : 0;
+        }
+    }
+
+    static class Row {
         int id;
         Calendar startTime;
         Calendar endTime;
         String extraData;
     }
 
-    private class ProjectDataOpenHelper extends SQLiteOpenHelper {
+    private static final DatabaseHolder.OpenHelperFactory OPEN_HELPER_FACTORY =
+            new DatabaseHolder.OpenHelperFactory() {
+                @Override
+                public SQLiteOpenHelper create(Context context, String dbName) {
+                    return new ProjectDataOpenHelper(context, dbName);
+                }
+            };
+
+    private static class ProjectDataOpenHelper extends SQLiteOpenHelper {
+
+        // The application Context, since the helper outlives any ProjectData
+        private Context mContext;
+        // False to create a new database without the change log triggers
+        private boolean mLogChanges;
 
         ProjectDataOpenHelper(Context context, String dbName) {
+            this(context, dbName, true);
+        }
+
+        ProjectDataOpenHelper(Context context, String dbName, boolean logChanges) {
             super(context, dbName, null, DATABASE_VERSION);
+            mContext = context;
+            mLogChanges = logChanges;
         }
 
         @Override
         public void onCreate(SQLiteDatabase sqLiteDatabase) {
-            Context context = mContextRef.get();
-            if (context == null) {
-                throw new RuntimeException("Missing Context: unable to upgrade database.");
-            }
+            Context context = mContext;
             String defaultDataSummary =
                     "'" + context.getString(R.string.preferences_summary_type_default_value) + "'";
             sqLiteDatabase.execSQL("CREATE TABLE " + PROJECTS_TABLE + " (" +
@@ -131,14 +316,208 @@ class ProjectData {
                                    KEY_DATA_SUMMARY_METHOD + " TEXT DEFAULT " +
                                         defaultDataSummary + "," +
                                    KEY_CURRENT_TIMECARD + " INTEGER DEFAULT -1);");
+            createProjectsNameIndex(sqLiteDatabase);
+            createEntriesTable(sqLiteDatabase);
+            createStatsTable(sqLiteDatabase);
+            createChangeLog(sqLiteDatabase, mLogChanges);
+        }
+
+        /**
+         * Creates the change log table, and the triggers which log every insert, update,
+         * and delete of the projects and entries tables
+         *
+         * @param sqLiteDatabase    the database
+         * @param logChanges        false to leave the triggers out, for them to be
+         *                          created later with createChangeLogTriggers()
+         */
+        private static void createChangeLog(SQLiteDatabase sqLiteDatabase,
+                                            boolean logChanges) {
+            sqLiteDatabase.execSQL("CREATE TABLE " + CHANGE_LOG_TABLE + " (" +
+                                   KEY_SEQUENCE + " INTEGER PRIMARY KEY AUTOINCREMENT," +
+                                   KEY_TABLE_NAME + " TEXT NOT NULL," +
+                                   KEY_OPERATION + " TEXT NOT NULL," +
+                                   KEY_ROW_ID + " INTEGER NOT NULL);");
+            if (logChanges) {
+                createChangeLogTriggers(sqLiteDatabase);
+            }
+        }
+
+        /**
+         * Creates the triggers which log changes to the change log table
+         *
+         * @param sqLiteDatabase    the database
+         */
+        private static void createChangeLogTriggers(SQLiteDatabase sqLiteDatabase) {
+            String insert = "INSERT INTO " + CHANGE_LOG_TABLE + " (" +
+                    KEY_TABLE_NAME + "," + KEY_OPERATION + "," + KEY_ROW_ID + ") ";
+            for (String table : LOGGED_TABLES) {
+                sqLiteDatabase.execSQL("CREATE TRIGGER " + table + "_log_insert " +
+                                       "AFTER INSERT ON " + table + " BEGIN " +
+                                       insert + "VALUES ('" + table + "','I',NEW.rowid); " +
+                                       "END;");
+                // An update which changes the rowid removes the old row
+                sqLiteDatabase.execSQL("CREATE TRIGGER " + table + "_log_update " +
+                                       "AFTER UPDATE ON " + table + " BEGIN " +
+                                       insert + "SELECT '" + table + "','D',OLD.rowid " +
+                                           "WHERE OLD.rowid<>NEW.rowid; " +
+                                       insert + "VALUES ('" + table + "','U',NEW.rowid); " +
+                                       "END;");
+                sqLiteDatabase.execSQL("CREATE TRIGGER " + table + "_log_delete " +
+                                       "AFTER DELETE ON " + table + " BEGIN " +
+                                       insert + "VALUES ('" + table + "','D',OLD.rowid); " +
+                                       "END;");
+            }
+        }
+
+        /**
+         * Creates the table which holds the statistics of every project
+         *
+         * @param sqLiteDatabase    the database
+         */
+        private void createStatsTable(SQLiteDatabase sqLiteDatabase) {
+            sqLiteDatabase.execSQL("CREATE TABLE " + STATS_TABLE + " (" +
+                                   KEY_PROJECT_ID + " INTEGER PRIMARY KEY," +
+                                   KEY_ROW_COUNT + " INTEGER DEFAULT 0," +
+                                   KEY_TOTAL_MILLIS + " INTEGER DEFAULT 0," +
+                                   KEY_NUMERIC_EXTRA_SUM + " REAL DEFAULT 0," +
+                                   KEY_NUMERIC_EXTRA_COUNT + " INTEGER DEFAULT 0," +
+                                   KEY_FIRST_START + " INTEGER DEFAULT NULL," +
+                                   KEY_LAST_START + " INTEGER DEFAULT NULL," +
+                                   KEY_LAST_END + " INTEGER DEFAULT NULL," +
+                                   KEY_OPEN_START + " INTEGER DEFAULT NULL);");
+        }
+
+        /**
+         * Creates the table which holds the timecard entries of every project, and its
+         * index on (project_id, start) which serves all per-project queries
+         *
+         * @param sqLiteDatabase    the database
+         */
+        private void createEntriesTable(SQLiteDatabase sqLiteDatabase) {
+            sqLiteDatabase.execSQL("CREATE TABLE " + ENTRIES_TABLE + " (" +
+                                   KEY_PROJECT_ID + " INTEGER NOT NULL," +
+                                   KEY_START_TIME + " INTEGER," +
+                                   KEY_END_TIME + " INTEGER DEFAULT NULL," +
+                                   KEY_EXTRA_DATA + " TEXT DEFAULT '');");
+            sqLiteDatabase.execSQL("CREATE INDEX " + ENTRIES_PROJECT_START_INDEX + " " +
+                                   "ON " + ENTRIES_TABLE + " (" +
+                                   KEY_PROJECT_ID + "," + KEY_START_TIME + ");");
+        }
+
+        /**
+         * Rebuilds the entries table with INTEGER start and end times, converting the
+         * "yyyy-MM-dd HH:mm:ss" local time text (used up to version 5) to UTC epoch
+         * milliseconds. The rowids are kept, so the current timecards remain valid.
+         *
+         * @param sqLiteDatabase    the database
+         */
+        private void convertEntryTimes(SQLiteDatabase sqLiteDatabase) {
+            final String textEntries = ENTRIES_TABLE + "_text";
+            sqLiteDatabase.execSQL("ALTER TABLE " + ENTRIES_TABLE + " " +
+                                   "RENAME TO " + textEntries + ";");
+            sqLiteDatabase.execSQL("DROP INDEX " + ENTRIES_PROJECT_START_INDEX + ";");
+            createEntriesTable(sqLiteDatabase);
+            // The 'utc' modifier treats the text as local time and converts it to UTC
+            sqLiteDatabase.execSQL(
+                    "INSERT INTO " + ENTRIES_TABLE + " (rowid," +
+                        KEY_PROJECT_ID + "," + KEY_START_TIME + "," +
+                        KEY_END_TIME + "," + KEY_EXTRA_DATA + ") " +
+                    "SELECT rowid," + KEY_PROJECT_ID + "," +
+                        "CAST(strftime('%s'," + KEY_START_TIME + ",'utc') AS INTEGER)*1000," +
+                        "CAST(strftime('%s',NULLIF(" + KEY_END_TIME + ",''),'utc') " +
+                            "AS INTEGER)*1000," +
+                        KEY_EXTRA_DATA + " " +
+                    "FROM " + textEntries + ";");
+            sqLiteDatabase.execSQL("DROP TABLE " + textEntries + ";");
+        }
+
+        /**
+         * Determines whether a table exists in the database
+         *
+         * @param sqLiteDatabase    the database
+         * @param tableName         the table name
+         * @return  true, if the table exists
+         */
+        private boolean tableExists(SQLiteDatabase sqLiteDatabase, String tableName) {
+            return DatabaseUtils.longForQuery(sqLiteDatabase,
+                    "SELECT COUNT(*) FROM sqlite_master WHERE type='table' AND name=?;",
+                    new String[] {tableName}) != 0;
+        }
+
+        /**
+         * Moves the rows of each project's own timecard table (used up to version 4) into
+         * the entries table, remaps each project's current timecard to its new rowid, and
+         * drops the old tables. Each project is moved with a single INSERT ... SELECT.
+         *
+         * @param sqLiteDatabase    the database
+         */
+        private void migrateProjectTables(SQLiteDatabase sqLiteDatabase) {
+            // A project may have been named after the entries table, so move its
+            // timecard table aside before the entries table is created
+            final String renamedEntriesProject = ENTRIES_TABLE + "_project";
+            if (tableExists(sqLiteDatabase, ENTRIES_TABLE)) {
+                sqLiteDatabase.execSQL("ALTER TABLE " + ENTRIES_TABLE + " " +
+                                       "RENAME TO " + renamedEntriesProject + ";");
+            }
+            createEntriesTable(sqLiteDatabase);
+            Cursor projects = sqLiteDatabase.rawQuery(
+                    "SELECT rowid," + KEY_PROJECT_NAME + "," + KEY_CURRENT_TIMECARD + " " +
+                    "FROM " + PROJECTS_TABLE + ";", null);
+            try {
+                while (projects.moveToNext()) {
+                    long projectId = projects.getLong(0);
+                    String projectName = projects.getString(1);
+                    long currentTimecard = projects.getLong(2);
+                    String tableName = ENTRIES_TABLE.equals(projectName) ?
+                            renamedEntriesProject : projectName;
+                    // Skip any project which is missing its timecard table
+                    if (!tableExists(sqLiteDatabase, tableName)) {
+                        continue;
+                    }
+                    String projectTable = "'" + tableName.replace("'", "''") + "'";
+                    // The rows are copied in rowid order, and each copied row is given
+                    // the next rowid after the largest one in the entries table. So, a
+                    // row's new rowid is the previous largest rowid plus its rank.
+                    long lastRowId = DatabaseUtils.longForQuery(sqLiteDatabase,
+                            "SELECT IFNULL(MAX(rowid),0) FROM " + ENTRIES_TABLE + ";", null);
+                    if (currentTimecard != -1) {
+                        long rank = DatabaseUtils.longForQuery(sqLiteDatabase,
+                                "SELECT COUNT(*) FROM " + projectTable + " WHERE rowid<=?;",
+                                new String[] {Long.toString(currentTimecard)});
+                        ContentValues cv = new ContentValues();
+                        cv.put(KEY_CURRENT_TIMECARD, rank > 0 ? lastRowId + rank : -1);
+                        sqLiteDatabase.update(PROJECTS_TABLE, cv, "rowid=?",
+                                              new String[] {Long.toString(projectId)});
+                    }
+                    sqLiteDatabase.execSQL(
+                            "INSERT INTO " + ENTRIES_TABLE + " (" +
+                                KEY_PROJECT_ID + "," + KEY_START_TIME + "," +
+                                KEY_END_TIME + "," + KEY_EXTRA_DATA + ") " +
+                            "SELECT ?," + KEY_START_TIME + "," + KEY_END_TIME + "," +
+                                KEY_EXTRA_DATA + " " +
+                            "FROM " + projectTable + " ORDER BY rowid;",
+                            new Object[] {projectId});
+                    sqLiteDatabase.execSQL("DROP TABLE " + projectTable + ";");
+                }
+            } finally {
+                projects.close();
+            }
+        }
+
+        /**
+         * Creates a UNIQUE index on the project names, which guarantees the names are
+         * unique and makes project lookups by name an index search instead of a scan
+         *
+         * @param sqLiteDatabase    the database
+         */
+        private void createProjectsNameIndex(SQLiteDatabase sqLiteDatabase) {
+            sqLiteDatabase.execSQL("CREATE UNIQUE INDEX " + PROJECTS_NAME_INDEX + " " +
+                                   "ON " + PROJECTS_TABLE + " (" + KEY_PROJECT_NAME + ");");
         }
 
         @Override
         public void onUpgrade(SQLiteDatabase sqLiteDatabase, int oldVersion, int newVersion) {
-            Context context = mContextRef.get();
-            if (context == null) {
-                throw new RuntimeException("Missing Context: unable to upgrade database.");
-            }
+            Context context = mContext;
             switch (oldVersion) {
                 case 1:
                     sqLiteDatabase.execSQL("ALTER TABLE " + PROJECTS_TABLE + " ADD COLUMN " +
@@ -152,7 +531,23 @@ class ProjectData {
                             KEY_SUPPRESS_NOTIFICATION + " INTEGER DEFAULT 0;");
                     sqLiteDatabase.execSQL("ALTER TABLE " + PROJECTS_TABLE + " ADD COLUMN " +
                             KEY_EXTRA_DATA_TITLE + " TEXT;");
-
+                case 3:
+                    // Remove any duplicate project names (keeping the first one) so the
+                    // UNIQUE index can be created
+                    sqLiteDatabase.execSQL("DELETE FROM " + PROJECTS_TABLE + " " +
+                            "WHERE rowid NOT IN (" +
+                                "SELECT MIN(rowid) FROM " + PROJECTS_TABLE + " " +
+                                "GROUP BY " + KEY_PROJECT_NAME + ");");
+                    createProjectsNameIndex(sqLiteDatabase);
+                case 4:
+                    migrateProjectTables(sqLiteDatabase);
+                case 5:
+                    convertEntryTimes(sqLiteDatabase);
+                case 6:
+                    createStatsTable(sqLiteDatabase);
+                    recomputeAllStatistics(sqLiteDatabase);
+                case 7:
+                    createChangeLog(sqLiteDatabase, true);
             }
         }
     }
@@ -163,26 +558,76 @@ class ProjectData {
      * @param context   a valid context
      */
     ProjectData(Context context) {
+        this(context, context.getString(R.string.default_database_filename));
+    }
+
+    ProjectData(Context context, String dbName) {
         mContextRef = new WeakReference<>(context);
+        mDatabaseName = dbName;
         // Make sure a lock can be acquired
         if (DatabaseLock.acquire(context, DatabaseLock.DATABASE)) {
-            mDBHelper = new ProjectDataOpenHelper(
-                    context, context.getString(R.string.default_database_filename));
-            mDatabase = mDBHelper.getWritableDatabase();
+            mDatabase = DatabaseHolder.acquire(context, dbName, OPEN_HELPER_FACTORY);
         }
     }
 
-    ProjectData(Context context, String dbName) {
-        mContextRef = new WeakReference<>(context);
-        if (DatabaseLock.acquire(context, DatabaseLock.DATABASE)) {
-            mDBHelper = new ProjectDataOpenHelper(context, dbName);
-            mDatabase = mDBHelper.getWritableDatabase();
+    /**
+     * Discards all cached project metadata. This must be called whenever the database
+     * file is changed outside of this class (e.g. when it is restored from a backup).
+     */
+    static void invalidateCache() {
+        synchronized (sMetadataCache) {
+            sMetadataCache.clear();
         }
     }
 
+    /**
+     * Returns the cached metadata of every project, keyed by project name. The metadata
+     * is read from the database on the first call only. The returned Metadata objects
+     * are shared and must not be handed to clients; use Metadata.copy() instead.
+     *
+     * @return  the cached metadata of every project in this database
+     */
     private Map<String, Metadata> getMetadata() {
-        Map<String, Metadata> results = new ArrayMap<>();
-        Cursor cursor = mDatabase.rawQuery("SELECT * FROM " + PROJECTS_TABLE + ";", null);
+        synchronized (sMetadataCache) {
+            Map<String, Metadata> metadata = sMetadataCache.get(mDatabaseName);
+            if (metadata == null) {
+                metadata = new HashMap<>();
+                for (Metadata projectMetadata : queryMetadata(null, null)) {
+                    metadata.put(projectMetadata.projectName, projectMetadata);
+                }
+                sMetadataCache.put(mDatabaseName, metadata);
+            }
+            return metadata;
+        }
+    }
+
+    /**
+     * Returns the shared, cached Metadata of a project
+     *
+     * @param projectName   a project name
+     * @return  the cached Metadata, or null if the project doesn't exist
+     */
+    private Metadata getCachedMetadata(String projectName) {
+        if (projectName == null) {
+            return null;
+        }
+        synchronized (sMetadataCache) {
+            return getMetadata().get(projectName);
+        }
+    }
+
+    /**
+     * Reads project metadata directly from the database
+     *
+     * @param selection     a WHERE clause (excluding WHERE), or null to read all projects
+     * @param selectionArgs arguments for the selection
+     * @return  a list of Metadata read from the database
+     */
+    private List<Metadata> queryMetadata(String selection, String[] selectionArgs) {
+        List<Metadata> results = new ArrayList<>();
+        Cursor cursor = mDatabase.query(PROJECTS_TABLE, new String[] {"rowid", "*"},
+                                        selection, selectionArgs, null, null, null);
+        int rowIdIndex = cursor.getColumnIndex("rowid");
         int nameIndex = cursor.getColumnIndex(KEY_PROJECT_NAME);
         int displayNameIndex = cursor.getColumnIndex(KEY_DISPLAY_NAME);
         int archivedIndex = cursor.getColumnIndex(KEY_ARCHIVED);
@@ -196,6 +641,7 @@ class ProjectData {
         int dataSummaryIndex = cursor.getColumnIndex(KEY_DATA_SUMMARY_METHOD);
         while (cursor.moveToNext()) {
             Metadata metadata = new Metadata();
+            metadata.projectId = cursor.getInt(rowIdIndex);
             metadata.projectName = cursor.getString(nameIndex);
             metadata.displayName = cursor.getString(displayNameIndex);
             // If the display name is not set, then use the project name
@@ -211,20 +657,67 @@ class ProjectData {
             metadata.defaultExtraData = cursor.getString(defaultExtraDataIndex);
             metadata.noDuration = cursor.getInt(noDurationIndex) != 0;
             metadata.dataSummaryMethod = cursor.getString(dataSummaryIndex);
-            results.put(metadata.projectName, metadata);
+            results.add(metadata);
         }
         cursor.close();
         return results;
     }
 
+    /**
+     * Writes a metadata value (as stored in the database) through to a cached Metadata
+     *
+     * @param metadata  the cached Metadata
+     * @param columnKey the name of the column which was updated
+     * @param value     the value written to the column
+     */
+    private static void applyMetadataValue(Metadata metadata, String columnKey, Object value) {
+        switch (columnKey) {
+            case KEY_DISPLAY_NAME:
+                metadata.displayName = TextUtils.isEmpty((String)value) ?
+                        metadata.projectName : (String)value;
+                break;
+            case KEY_ARCHIVED:
+                metadata.archived = ((Number)value).intValue() != 0;
+                break;
+            case KEY_TRACK_LOCATION:
+                metadata.trackLocation = ((Number)value).intValue() != 0;
+                break;
+            case KEY_NO_DURATION:
+                metadata.noDuration = ((Number)value).intValue() != 0;
+                break;
+            case KEY_SUPPRESS_NOTIFICATION:
+                metadata.suppressNotification = ((Number)value).intValue() != 0;
+                break;
+            case KEY_USES_EXTRA_DATA:
+                metadata.usesExtraData = ((Number)value).intValue() != 0;
+                break;
+            case KEY_EXTRA_DATA_TITLE:
+                metadata.extraDataTitle = (String)value;
+                break;
+            case KEY_DEFAULT_EXTRA_DATA:
+                metadata.defaultExtraData = (String)value;
+                break;
+            case KEY_DATA_SUMMARY_METHOD:
+                metadata.dataSummaryMethod = (String)value;
+                break;
+            case KEY_CURRENT_TIMECARD:
+                metadata.currentTimecard = ((Number)value).intValue();
+                break;
+        }
+    }
+
     /**
      * Returns the Metadata for a specific project
      *
      * @param projectName   a project name
-     * @return  Metadata for the project, or null if the project name doesn't exist
+     * @return  a copy of the Metadata for the project, or null if the project name
+     *          doesn't exist
      */
     Metadata getProjectMetadata(String projectName) {
-        return projectName != null ? getMetadata().get(projectName) : null;
+        synchronized (sMetadataCache) {
+            Metadata metadata = getCachedMetadata(projectName);
+            return metadata != null ? metadata.copy() : null;
+        }
     }
 
     /**
@@ -234,28 +727,137 @@ class ProjectData {
      * @return  ExtendedMetadata for a project
      */
     ExtendedMetadata getProjectExtendedMetadata(String projectName) {
-        Metadata metadata = getMetadata().get(projectName);
+        Metadata metadata = getProjectMetadata(projectName);
         if (metadata != null) {
-            ExtendedMetadata extendedMetadata = new ExtendedMetadata();
-            extendedMetadata.metadata = metadata;
-            extendedMetadata.clockedIn = isClockedIn(projectName);
-            List<Row> rowData = getRows(projectName);
-            extendedMetadata.dataSummary = DataSummary.getSummary(
-                    mContextRef.get(), extendedMetadata.metadata.dataSummaryMethod, rowData);
-            extendedMetadata.totalTime = 0;
-            Calendar now = Calendar.getInstance(Locale.getDefault());
-            for (Row row : rowData) {
-                Calendar endTime = row.endTime == null ? now : row.endTime;
-                extendedMetadata.totalTime +=
-                        (int)((endTime.getTimeInMillis()-row.startTime.getTimeInMillis())/1000);
-            }
-            extendedMetadata.metadataTime = (int)(now.getTimeInMillis() / 1000);
-            return extendedMetadata;
+            return createExtendedMetadata(
+                    mContextRef.get(), metadata, getStatistics(projectName));
         } else {
             return null;
         }
     }
 
+    /**
+     * Creates extended metadata for a project from its metadata and statistics, without
+     * accessing the database (e.g. from the contents of a ProjectEvents.Event)
+     *
+     * @param context       a Context
+     * @param metadata      the project's metadata
+     * @param statistics    the project's statistics
+     * @return  ExtendedMetadata for the project
+     */
+    static ExtendedMetadata createExtendedMetadata(Context context, Metadata metadata,
+                                                   Statistics statistics) {
+        ExtendedMetadata extendedMetadata = new ExtendedMetadata();
+        extendedMetadata.metadata = metadata;
+        extendedMetadata.statistics = statistics;
+        extendedMetadata.clockedIn = metadata.currentTimecard != -1;
+        extendedMetadata.dataSummary = DataSummary.getSummary(
+                context, metadata.dataSummaryMethod, statistics);
+        return extendedMetadata;
+    }
+
+    /**
+     * Publishes a change to a project, along with its metadata and statistics after
+     * the change
+     *
+     * @param type          the ProjectEvents event type
+     * @param projectName   the project name
+     */
+    private void publishChange(int type, String projectName) {
+        Metadata metadata = getProjectMetadata(projectName);
+        Statistics statistics = metadata != null ? getStatistics(projectName) : null;
+        // Keep the clock state snapshot in step with the database
+        ClockState clockState = getClockState();
+        if (clockState != null) {
+            if (metadata != null) {
+                clockState.put(createClockState(metadata, statistics));
+            } else {
+                clockState.remove(projectName);
+            }
+        }
+        ProjectEvents.post(new ProjectEvents.Event(
+                type, mDatabaseName, projectName, metadata, statistics));
+    }
+
+    private static ClockState.State createClockState(Metadata metadata, Statistics statistics) {
+        ClockState.State state = new ClockState.State();
+        state.projectName = metadata.projectName;
+        state.projectId = metadata.projectId;
+        state.clockedIn = metadata.currentTimecard != -1;
+        state.openStartMillis = statistics != null && statistics.open ?
+                statistics.openStartMillis : 0;
+        state.noDuration = metadata.noDuration;
+        state.usesExtraData = metadata.usesExtraData;
+        return state;
+    }
+
+    /**
+     * Reads the clock state of a project from the database, for when it isn't in the
+     * clock state snapshot
+     *
+     * @param projectName   the project name
+     * @return  the project's clock state, or null if the project doesn't exist
+     */
+    ClockState.State getProjectClockState(String projectName) {
+        Metadata metadata = getProjectMetadata(projectName);
+        return metadata != null ?
+                createClockState(metadata, getStatistics(projectName)) : null;
+    }
+
+    /**
+     * Returns the clock state snapshot of this database
+     *
+     * @return  the ClockState, or null if the Context is gone
+     */
+    private ClockState getClockState() {
+        Context context = mContextRef.get();
+        return context != null ? ClockState.forDatabase(context, mDatabaseName) : null;
+    }
+
+    /**
+     * Rebuilds the clock state snapshot of this database from the projects and their
+     * statistics, e.g. at startup or after the database was replaced. If a change is
+     * committed while the projects are being read, they are read again so the
+     * snapshot never goes back to an older state.
+     */
+    void rebuildClockState() {
+        ClockState clockState = getClockState();
+        if (clockState == null) {
+            return;
+        }
+        boolean rebuilt;
+        do {
+            long generation = clockState.getGeneration();
+            rebuilt = clockState.rebuild(queryClockStates(), generation);
+        } while (!rebuilt);
+    }
+
+    private List<ClockState.State> queryClockStates() {
+        List<ClockState.State> states = new ArrayList<>();
+        Cursor cursor = mDatabase.rawQuery(
+                "SELECT p.rowid,p." + KEY_PROJECT_NAME + ",p." + KEY_CURRENT_TIMECARD + "," +
+                    "p." + KEY_NO_DURATION + ",p." + KEY_USES_EXTRA_DATA + "," +
+                    "s." + KEY_OPEN_START + " " +
+                "FROM " + PROJECTS_TABLE + " p " +
+                "LEFT JOIN " + STATS_TABLE + " s ON s." + KEY_PROJECT_ID + "=p.rowid;",
+                null);
+        try {
+            while (cursor.moveToNext()) {
+                ClockState.State state = new ClockState.State();
+                state.projectId = cursor.getInt(0);
+                state.projectName = cursor.getString(1);
+                state.clockedIn = cursor.getInt(2) != -1;
+                state.noDuration = cursor.getInt(3) != 0;
+                state.usesExtraData = cursor.getInt(4) != 0;
+                state.openStartMillis = cursor.isNull(5) ? 0 : cursor.getLong(5);
+                states.add(state);
+            }
+        } finally {
+            cursor.close();
+        }
+        return states;
+    }
+
     /**
      * Gets a list of project names (either archived or not archived)
      *
@@ -277,21 +879,33 @@ class ProjectData {
         return names.toArray(new String[] {});
     }
 
+    /**
+     * Determines whether a project exists. The lookup is done against the project
+     * names held in the metadata cache, so no database query is needed.
+     *
+     * @param project   the project name
+     * @return  true, if the project exists
+     */
     boolean exists(String project) {
         if (project == null) {
             return false;
         }
-        Cursor cursor = mDatabase.rawQuery("SELECT " + KEY_PROJECT_NAME + " " +
-                                           "FROM " + PROJECTS_TABLE + ";", null);
-        List<String> names = new ArrayList<>();
-        // Add the protected metadata table name (so it isn't overwritten)
-        names.add(PROJECTS_TABLE);
-        int nameIndex = cursor.getColumnIndex(KEY_PROJECT_NAME);
-        while (cursor.moveToNext()) {
-            names.add(cursor.getString(nameIndex));
+        synchronized (sMetadataCache) {
+            return getMetadata().containsKey(project);
+        }
+    }
+
+    /**
+     * Returns the ID of a project, which ties the project to its rows in the entries table
+     *
+     * @param project   the project name
+     * @return  the project ID, or -1 if the project doesn't exist
+     */
+    private int getProjectId(String project) {
+        synchronized (sMetadataCache) {
+            Metadata metadata = getCachedMetadata(project);
+            return metadata != null ? metadata.projectId : -1;
         }
-        cursor.close();
-        return names.contains(project);
     }
 
     /**
@@ -303,18 +917,114 @@ class ProjectData {
      * @return  true, if the update was successful
      */
     private boolean setMetadataValue(String projectName, String column_key, @NonNull Object value) {
-        Metadata metadata = getProjectMetadata(projectName);
-        if (metadata != null) {
-            ContentValues cv = new ContentValues();
-            if (value instanceof Integer) {
-                cv.put(column_key, (Integer)value);
-            } else if (value instanceof Long) {
-                cv.put(column_key, (Long)value);
-            } else if (value instanceof Boolean) {
-                // Boolean values are stored as integers in the SQLite database
-                cv.put(column_key, (Boolean)value ? 1 : 0);
-            } else if (value instanceof String) {
-                cv.put(column_key, (String)value);
+        ContentValues cv = new ContentValues();
+        putMetadataValue(cv, column_key, value);
+        return setMetadataValues(projectName, cv);
+    }
+
+    /**
+     * Changes a project's current timecard, as part of the caller's transaction. The
+     * update only succeeds if the current timecard is still the expected one. The
+     * metadata cache must be updated with setCachedCurrentTimecard() once the
+     * transaction commits.
+     *
+     * @param projectId the project ID
+     * @param expected  the expected current timecard
+     * @param rowId     the new current timecard, or -1 if the project is clocked out
+     * @return  true, if the current timecard was changed
+     */
+    private boolean updateCurrentTimecard(int projectId, int expected, long rowId) {
+        SQLiteStatement statement = getStatement(SQL_UPDATE_CURRENT_TIMECARD);
+        statement.bindLong(1, rowId);
+        statement.bindLong(2, projectId);
+        statement.bindLong(3, expected);
+        return statement.executeUpdateDelete() == 1;
+    }
+
+    /**
+     * Returns one of this database's compiled statements, which may only be used inside
+     * a transaction
+     *
+     * @param sql   the statement's SQL
+     * @return  the compiled statement
+     */
+    private SQLiteStatement getStatement(String sql) {
+        return DatabaseHolder.getStatement(mDatabaseName, sql);
+    }
+
+    /**
+     * Binds a value, which may be null, to a compiled statement
+     *
+     * @param statement the statement
+     * @param index     the 1-based index of the parameter
+     * @param value     a Long, String, or null
+     */
+    private static void bindValue(SQLiteStatement statement, int index, Object value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else if (value instanceof Long) {
+            statement.bindLong(index, (Long)value);
+        } else {
+            statement.bindString(index, value.toString());
+        }
+    }
+
+    private void setCachedCurrentTimecard(String projectName, long rowId) {
+        synchronized (sMetadataCache) {
+            Metadata metadata = getCachedMetadata(projectName);
+            if (metadata != null) {
+                metadata.currentTimecard = (int)rowId;
+            }
+        }
+    }
+
+    /**
+     * Adds a metadata value to a ContentValues in the form it's stored in the database
+     *
+     * @param cv            the ContentValues to add the value to
+     * @param column_key    the name of the column
+     * @param value the value, either: Integer, Long, Boolean (stored as 1 or 0), or String
+     */
+    private static void putMetadataValue(ContentValues cv, String column_key,
+                                         @NonNull Object value) {
+        if (value instanceof Integer) {
+            cv.put(column_key, (Integer)value);
+        } else if (value instanceof Long) {
+            cv.put(column_key, (Long)value);
+        } else if (value instanceof Boolean) {
+            // Boolean values are stored as integers in the SQLite database
+            cv.put(column_key, (Boolean)value ? 1 : 0);
+        } else if (value instanceof String) {
+            cv.put(column_key, (String)value);
+        }
+    }
+
+    /**
+     * Sets several of a project's metadata values with a single database update, and
+     * writes the new values through to the metadata cache
+     *
+     * @param projectName   the project name
+     * @param cv            the new metadata values, keyed by column name
+     * @return  true, if the update was successful
+     */
+    private boolean setMetadataValues(String projectName, ContentValues cv) {
+        int eventType;
+        if (cv.containsKey(KEY_ARCHIVED)) {
+            eventType = ProjectEvents.PROJECT_ARCHIVED;
+        } else if (cv.containsKey(KEY_DISPLAY_NAME)) {
+            eventType = ProjectEvents.PROJECT_RENAMED;
+        } else {
+            eventType = ProjectEvents.METADATA_CHANGED;
+        }
+        synchronized (sMetadataCache) {
+            Metadata metadata = getCachedMetadata(projectName);
+            if (metadata == null) {
+                // Project doesn't exist
+                return false;
+            }
+            if (cv.size() == 0) {
+                // Nothing to update
+                return true;
             }
             // Update the database
             int updated = mDatabase.update(
@@ -324,11 +1034,13 @@ class ProjectData {
             if (updated == 0) {
                 throw new RuntimeException("Unable to update metadata for '" + projectName + "'");
             }
-            return true;
-        } else {
-            // Project doesn't exist
-            return false;
+            // Write the new values through to the cache
+            for (Map.Entry<String, Object> value : cv.valueSet()) {
+                applyMetadataValue(metadata, value.getKey(), value.getValue());
+            }
         }
+        publishChange(eventType, projectName);
+        return true;
     }
 
     /**
@@ -342,17 +1054,19 @@ class ProjectData {
     boolean updateMetadata(String project, @NonNull Metadata newMetadata) {
         Metadata prevMetadata = getProjectMetadata(project);
         if (prevMetadata != null) {
+            // Collect the changed values so they're written with a single update
+            ContentValues cv = new ContentValues();
             // Change the display name
             if (TextUtils.isEmpty(prevMetadata.displayName) ||
                     !prevMetadata.displayName.equals(newMetadata.displayName)) {
-                setMetadataValue(project, KEY_DISPLAY_NAME, newMetadata.displayName);
+                putMetadataValue(cv, KEY_DISPLAY_NAME, newMetadata.displayName);
             }
             // Change the metadata properties which are different
             if (prevMetadata.noDuration != newMetadata.noDuration) {
-                setMetadataValue(project, KEY_NO_DURATION, newMetadata.noDuration);
+                putMetadataValue(cv, KEY_NO_DURATION, newMetadata.noDuration);
             }
             if (prevMetadata.usesExtraData != newMetadata.usesExtraData) {
-                setMetadataValue(project, KEY_USES_EXTRA_DATA, newMetadata.usesExtraData);
+                putMetadataValue(cv, KEY_USES_EXTRA_DATA, newMetadata.usesExtraData);
             }
             if (prevMetadata.defaultExtraData == null ||
                     newMetadata.defaultExtraData == null ||
@@ -361,29 +1075,29 @@ class ProjectData {
                 if (newMetadata.defaultExtraData == null) {
                     newMetadata.defaultExtraData = "";
                 }
-                setMetadataValue(project, KEY_DEFAULT_EXTRA_DATA, newMetadata.defaultExtraData);
+                putMetadataValue(cv, KEY_DEFAULT_EXTRA_DATA, newMetadata.defaultExtraData);
             }
             if (prevMetadata.archived != newMetadata.archived) {
-                setMetadataValue(project, KEY_ARCHIVED, newMetadata.archived);
+                putMetadataValue(cv, KEY_ARCHIVED, newMetadata.archived);
             }
             if (prevMetadata.trackLocation != newMetadata.trackLocation) {
-                setMetadataValue(project, KEY_TRACK_LOCATION, newMetadata.trackLocation);
+                putMetadataValue(cv, KEY_TRACK_LOCATION, newMetadata.trackLocation);
             }
             if (prevMetadata.suppressNotification != newMetadata.suppressNotification) {
-                setMetadataValue(project, KEY_SUPPRESS_NOTIFICATION,
+                putMetadataValue(cv, KEY_SUPPRESS_NOTIFICATION,
                                  newMetadata.suppressNotification);
             }
             if (!prevMetadata.dataSummaryMethod.equals(newMetadata.dataSummaryMethod)) {
-                setMetadataValue(project, KEY_DATA_SUMMARY_METHOD, newMetadata.dataSummaryMethod);
+                putMetadataValue(cv, KEY_DATA_SUMMARY_METHOD, newMetadata.dataSummaryMethod);
             }
             if (TextUtils.isEmpty(prevMetadata.extraDataTitle) ||
                     !prevMetadata.extraDataTitle.equals(newMetadata.extraDataTitle)) {
                 if (TextUtils.isEmpty(newMetadata.extraDataTitle)) {
                     newMetadata.extraDataTitle = "";
                 }
-                setMetadataValue(project, KEY_EXTRA_DATA_TITLE, newMetadata.extraDataTitle);
+                putMetadataValue(cv, KEY_EXTRA_DATA_TITLE, newMetadata.extraDataTitle);
             }
-            return true;
+            return setMetadataValues(project, cv);
         } else {
             // Project doesn't exist
             return false;
@@ -397,15 +1111,27 @@ class ProjectData {
         ContentValues cv = new ContentValues();
         cv.put(KEY_PROJECT_NAME, project);
         cv.put(KEY_DISPLAY_NAME, project);
-        // Insert the project metadata
-        long rowid = mDatabase.insert(PROJECTS_TABLE, null, cv);
-        // Insert a new project table
+        // Insert the project metadata along with its (empty) statistics
+        long rowid;
+        mDatabase.beginTransaction();
+        try {
+            rowid = mDatabase.insert(PROJECTS_TABLE, null, cv);
+            if (rowid != -1) {
+                recomputeStatistics(mDatabase, (int)rowid);
+            }
+            mDatabase.setTransactionSuccessful();
+        } finally {
+            mDatabase.endTransaction();
+        }
         if (rowid != -1) {
-            mDatabase.execSQL("DROP TABLE IF EXISTS '" + project + "';");
-            mDatabase.execSQL("CREATE TABLE '" + project + "' (" +
-                              KEY_START_TIME + " TEXT," +
-                              KEY_END_TIME + " TEXT DEFAULT NULL," +
-                              KEY_EXTRA_DATA + " TEXT DEFAULT '');");
+            // Add the new project's metadata (with its database defaults) to the cache
+            synchronized (sMetadataCache) {
+                for (Metadata metadata : queryMetadata(
+                        KEY_PROJECT_NAME + "=?", new String[] {project})) {
+                    getMetadata().put(metadata.projectName, metadata);
+                }
+            }
+            publishChange(ProjectEvents.PROJECT_ADDED, project);
         }
         return rowid != -1;
     }
@@ -448,16 +1174,35 @@ class ProjectData {
      * @return  true if the project was deleted
      */
     boolean deleteProject(String project) {
-        if (exists(project)) {
-            // Delete the project timecard table
-            mDatabase.execSQL("DROP TABLE '" + project + "';");
-            // Delete the metadata
-            long updated = mDatabase.delete(PROJECTS_TABLE,
-                                            KEY_PROJECT_NAME + "=?",
-                                            new String[] {project});
-            if (updated == 0) {
-                throw new RuntimeException("Unable to delete timecard for '" + project + "'");
+        int projectId = getProjectId(project);
+        if (projectId != -1) {
+            mDatabase.beginTransaction();
+            try {
+                // Delete the project's timecard entries
+                mDatabase.delete(ENTRIES_TABLE, KEY_PROJECT_ID + "=?",
+                                 new String[] {Integer.toString(projectId)});
+                mDatabase.delete(STATS_TABLE, KEY_PROJECT_ID + "=?",
+                                 new String[] {Integer.toString(projectId)});
+                // Delete the metadata
+                long updated = mDatabase.delete(PROJECTS_TABLE,
+                                                KEY_PROJECT_NAME + "=?",
+                                                new String[] {project});
+                if (updated == 0) {
+                    throw new RuntimeException("Unable to delete timecard for '" + project + "'");
+                }
+                mDatabase.setTransactionSuccessful();
+            } finally {
+                mDatabase.endTransaction();
             }
+            synchronized (sMetadataCache) {
+                getMetadata().remove(project);
+            }
+            ClockState clockState = getClockState();
+            if (clockState != null) {
+                clockState.remove(project);
+            }
+            ProjectEvents.post(new ProjectEvents.Event(
+                    ProjectEvents.PROJECT_DELETED, mDatabaseName, project, null, null));
             return true;
         } else {
             return false;
@@ -472,86 +1217,106 @@ class ProjectData {
      */
     boolean isClockedIn(String project) {
         // Get the project data
-        Metadata metadata = getProjectMetadata(project);
-        // Checked in is TRUE if a row ID is not equal to -1 (invalid)
-        return metadata != null && metadata.currentTimecard != -1;
+        synchronized (sMetadataCache) {
+            Metadata metadata = getCachedMetadata(project);
+            // Checked in is TRUE if a row ID is not equal to -1 (invalid)
+            return metadata != null && metadata.currentTimecard != -1;
+        }
     }
 
     /**
-     * Helper function which returns the current date time in an SQLite friendly format
-     * yyyy-MM-dd HH:mm:ss
+     * Gets the rows for a specific project
      *
-     * @param date  a Date to convert to a date time format, or null to get a current time
-     * @return  a String representing the current timestamp (year, month, date, and time)
+     * @param project   the project name
+     * @return  the project's row data, or null if the project doesn't exist
      */
-    private String getDateTime(Date date) {
-        SimpleDateFormat dateFormat = new SimpleDateFormat(
-                "yyyy-MM-dd HH:mm:ss", Locale.getDefault());
-        if (date == null) {
-            date = new Date();
-        }
-        return dateFormat.format(date);
+    RowBlock getRows(String project) {
+        int projectId = getProjectId(project);
+        return projectId != -1 ? queryRows(projectId, null, null, null) : null;
     }
 
     /**
-     * Helper function which returns a Date in the default locale based on a String
-     * returned from getDateTime()
+     * Gets a window of rows for a specific project, in the same order as getRows(),
+     * by skipping the given number of rows. Prefer getRowsAfter() when the last row of
+     * the previous window is known, since skipping rows takes time proportional to
+     * the offset.
      *
-     * @param datetime  a time String from getDateTime() -- format: "yyyy-MM-dd HH:mm:ss"
-     * @return  a Date object, or null if there was a ParseException
+     * @param project   the project name
+     * @param offset    the number of rows to skip
+     * @param limit     the maximum number of rows to return
+     * @return  the project's row data, or null if the project doesn't exist
      */
-    private Date getDate(String datetime) {
-        if (TextUtils.isEmpty(datetime)) {
-            return null;
-        }
-        SimpleDateFormat dateFormat = new SimpleDateFormat(
-                "yyyy-MM-dd HH:mm:ss", Locale.getDefault());
-        try {
-            return dateFormat.parse(datetime);
-        } catch (ParseException exception) {
-            return null;
-        }
+    RowBlock getRows(String project, int offset, int limit) {
+        int projectId = getProjectId(project);
+        return projectId != -1 ?
+                queryRows(projectId, null, null, offset + "," + limit) : null;
     }
 
     /**
-     * Gets the rows for a specific project
+     * Gets a window of rows for a specific project which directly follow a given row,
+     * in the same order as getRows(). The rows are found using the (project_id, start)
+     * index, so the cost doesn't depend on how far into the project the row is.
      *
-     * @param project   the project name
+     * @param project       the project name
+     * @param startMillis   the start time of the row preceding the window
+     * @param rowId         the id of the row preceding the window
+     * @param limit         the maximum number of rows to return
      * @return  the project's row data, or null if the project doesn't exist
      */
-    List<Row> getRows(String project) {
-        if (exists(project)) {
-            List<Row> results = new ArrayList<>();
-            Cursor cursor = mDatabase.query(project, PROJECT_COLUMNS, null, null, null, null,
-                                            KEY_START_TIME + " DESC");
-            int rowIdIndex = cursor.getColumnIndex("rowid");
-            int startIndex = cursor.getColumnIndex(KEY_START_TIME);
-            int endIndex = cursor.getColumnIndex(KEY_END_TIME);
-            int extraIndex = cursor.getColumnIndex(KEY_EXTRA_DATA);
-            while (cursor.moveToNext()) {
-                Row row = new Row();
-                row.id = cursor.getInt(rowIdIndex);
-                row.startTime = Calendar.getInstance(Locale.getDefault());
-                row.startTime.setTime(getDate(cursor.getString(startIndex)));
-                // While it's not possible to have a missing start time, there
-                // could be a NULL end time if the project is clocked in
-                Date endDate = getDate(cursor.getString(endIndex));
-                if (endDate != null) {
-                    row.endTime = Calendar.getInstance(Locale.getDefault());
-                    row.endTime.setTime(getDate(cursor.getString(endIndex)));
-                } else {
-                    row.endTime = null;
-                }
-                row.extraData = cursor.getString(extraIndex);
-                results.add(row);
-            }
-            cursor.close();
-            return results;
+    RowBlock getRowsAfter(String project, long startMillis, int rowId, int limit) {
+        int projectId = getProjectId(project);
+        if (projectId != -1) {
+            String start = Long.toString(startMillis);
+            return queryRows(projectId,
+                             "(" + KEY_START_TIME + "<? OR " +
+                              "(" + KEY_START_TIME + "=? AND rowid<?))",
+                             new String[] {start, start, Integer.toString(rowId)},
+                             Integer.toString(limit));
         } else {
             return null;
         }
     }
 
+    /**
+     * Queries a project's rows, ordered by descending start time (and rowid)
+     *
+     * @param projectId     the project's rowid
+     * @param selection     an additional selection, or null
+     * @param selectionArgs the arguments of the additional selection, or null
+     * @param limit         the LIMIT clause, or null
+     * @return  the project's row data
+     */
+    private RowBlock queryRows(int projectId, String selection, String[] selectionArgs,
+                               String limit) {
+        List<String> args = new ArrayList<>();
+        args.add(Integer.toString(projectId));
+        if (selectionArgs != null) {
+            Collections.addAll(args, selectionArgs);
+        }
+        Cursor cursor = mDatabase.query(ENTRIES_TABLE, PROJECT_COLUMNS,
+                                        KEY_PROJECT_ID + "=?" +
+                                            (selection != null ? " AND " + selection : ""),
+                                        args.toArray(new String[args.size()]),
+                                        null, null,
+                                        KEY_START_TIME + " DESC, rowid DESC", limit);
+        int rowIdIndex = cursor.getColumnIndex("rowid");
+        int startIndex = cursor.getColumnIndex(KEY_START_TIME);
+        int endIndex = cursor.getColumnIndex(KEY_END_TIME);
+        int extraIndex = cursor.getColumnIndex(KEY_EXTRA_DATA);
+        RowBlock results = new RowBlock(cursor.getCount());
+        while (cursor.moveToNext()) {
+            // While it's not possible to have a missing start time, there
+            // could be a NULL end time if the project is clocked in
+            results.add(cursor.getLong(rowIdIndex),
+                        cursor.getLong(startIndex),
+                        cursor.isNull(endIndex) ?
+                                RowBlock.NO_END_TIME : cursor.getLong(endIndex),
+                        cursor.getString(extraIndex));
+        }
+        cursor.close();
+        return results;
+    }
+
     /**
      * Updates a row of a given project
      *
@@ -561,13 +1326,30 @@ class ProjectData {
      *          or the row update failed
      */
     boolean updateRow(String project, Row row) {
-        if (exists(project)) {
+        int projectId = getProjectId(project);
+        if (projectId != -1) {
             ContentValues cv =  new ContentValues();
-            cv.put(KEY_START_TIME, getDateTime(row.startTime.getTime()));
-            cv.put(KEY_END_TIME, getDateTime(row.endTime.getTime()));
+            cv.put(KEY_START_TIME, row.startTime.getTimeInMillis());
+            cv.put(KEY_END_TIME, row.endTime.getTimeInMillis());
             cv.put(KEY_EXTRA_DATA, row.extraData);
-            int updated = mDatabase.update(project, cv, "rowid=?",
-                                           new String[] {Integer.toString(row.id)});
+            int updated;
+            mDatabase.beginTransaction();
+            try {
+                updated = mDatabase.update(ENTRIES_TABLE, cv,
+                                           "rowid=? AND " + KEY_PROJECT_ID + "=?",
+                                           new String[] {Integer.toString(row.id),
+                                                         Integer.toString(projectId)});
+                // An edited row can change any of the statistics, so recompute them
+                if (updated != 0) {
+                    recomputeStatistics(mDatabase, projectId);
+                }
+                mDatabase.setTransactionSuccessful();
+            } finally {
+                mDatabase.endTransaction();
+            }
+            if (updated != 0) {
+                publishChange(ProjectEvents.ROWS_CHANGED, project);
+            }
             return updated != 0;
         } else {
             return false;
@@ -582,15 +1364,60 @@ class ProjectData {
      * @return  true, if the row was deleted
      */
     boolean deleteRow(String project, int id) {
-        if (exists(project)) {
-            int deleted = mDatabase.delete(project, "rowid=?",
-                                           new String[] {Integer.toString(id)});
+        int projectId = getProjectId(project);
+        if (projectId != -1) {
+            int deleted;
+            mDatabase.beginTransaction();
+            try {
+                deleted = mDatabase.delete(ENTRIES_TABLE,
+                                           "rowid=? AND " + KEY_PROJECT_ID + "=?",
+                                           new String[] {Integer.toString(id),
+                                                         Integer.toString(projectId)});
+                if (deleted != 0) {
+                    recomputeStatistics(mDatabase, projectId);
+                }
+                mDatabase.setTransactionSuccessful();
+            } finally {
+                mDatabase.endTransaction();
+            }
+            if (deleted != 0) {
+                publishChange(ProjectEvents.ROWS_CHANGED, project);
+            }
             return deleted != 0;
         } else {
             return false;
         }
     }
 
+    /**
+     * A command to clock a project in or out, for applyBatch(). The results are filled
+     * in when the batch is applied.
+     */
+    static class ClockCommand {
+        static final int CLOCK_IN = 0;
+        static final int CLOCK_OUT = 1;
+        // Clock out if the project is clocked in, otherwise clock in
+        static final int TOGGLE = 2;
+
+        final int action;
+        final String projectName;
+        // Specific extra data to use when clocking in, or null to use the default
+        final String extraData;
+
+        // True if the project was clocked in or out
+        boolean applied;
+        // CLOCK_IN or CLOCK_OUT, once applied
+        int appliedAction = -1;
+        // The duration of the clocked out entry in seconds, once applied
+        int duration = -1;
+
+        ClockCommand(int action, String projectName, String extraData) {
+            this.action = action;
+            this.projectName = projectName;
+            this.extraData = extraData;
+        }
+    }
+
     /**
      * A project can only be clocked in once. A project must be clocked out before
      * another clock in is allowed. Projects which are set to "no duration" do not
@@ -600,149 +1427,380 @@ class ProjectData {
      * If the project has "use extra data" flag set, then the specified extra data
      * is used. Or, if null is passed, then the default (if any) is used.
      *
+     * The new row, the project's statistics, and its current timecard are all written
+     * in a single transaction.
+     *
      * @param project project name
      * @param extra specific extra data to use, or null to use the default extra data
      *
      * @return  true, if the project was clocked in
      */
     boolean clockIn(String project, String extra) {
-        // Get the project data
-        Metadata metadata = getProjectMetadata(project);
-        if (metadata != null) {
-            // Make sure the project isn't already clocked in
-            if (metadata.currentTimecard == -1) {
-                // Add a new row to the timecard
-                ContentValues cv = new ContentValues();
-                // Get the current timestamp
-                String dateTime = getDateTime(null);
-                cv.put(KEY_START_TIME, dateTime);
-                // If this project is labeled as "no duration" then set the end time too
-                if (metadata.noDuration) {
-                    cv.put(KEY_END_TIME, dateTime);
-                }
-                // If the project is uses extra data, then insert it
-                if (metadata.usesExtraData || extra != null) {
-                    if (extra != null) {
-                        cv.put(KEY_EXTRA_DATA, extra);
-                    } else if (metadata.defaultExtraData != null) {
-                        cv.put(KEY_EXTRA_DATA, metadata.defaultExtraData);
-                    }
-                }
-                // Insert the new data
-                long row_id = mDatabase.insert("'"+project+"'", null, cv);
-                // If "no duration" flag is not set (default), then save the row id of the
-                // incomplete row, to signify that the project is "clocked in"
-                if (!metadata.noDuration) {
-                    setMetadataValue(project, KEY_CURRENT_TIMECARD, row_id);
-                }
-                return true;
-            } else {
-                // Project is already clocked in -- must be clocked out first
-                return false;
-            }
-        } else {
-            // Project does not exist
-            return false;
-        }
+        ClockCommand command = new ClockCommand(ClockCommand.CLOCK_IN, project, extra);
+        applyBatch(Collections.singletonList(command));
+        return command.applied;
     }
 
     /**
-     * Clock a project out and return the duration of the event
+     * Clock a project out and return the duration of the event. The row, the project's
+     * statistics, and its current timecard are all written in a single transaction.
      *
      * @param project   the project name
      * @return  the time of the most recent duration, or -1 if clock out failed
      *          (e.g. the project isn't clocked in, or doesn't exist)
      */
     int clockOut(String project) {
-        // Get the project data
-        Metadata metadata = getProjectMetadata(project);
-        if (metadata != null) {
-            // Make sure the project is clocked in
-            if (metadata.currentTimecard != -1) {
-                // Add the stop time to the timecard
-                ContentValues cv = new ContentValues();
-                cv.put(KEY_END_TIME, getDateTime(null));
-                int rowID = metadata.currentTimecard;
-                int updated = mDatabase.update(
-                        "'"+project+"'", cv, "rowid=?",
-                        new String[] {Integer.toString(rowID)});
-                // If unable to update the row, then there was an error clocking out
-                if (updated == 0) {
-                    throw new RuntimeException("Unable to clock out of '" + project + "'");
+        ClockCommand command = new ClockCommand(ClockCommand.CLOCK_OUT, project, null);
+        applyBatch(Collections.singletonList(command));
+        return command.duration;
+    }
+
+    /**
+     * Clocks a project out if it's clocked in, otherwise clocks it in. Either way, this
+     * is a single transaction.
+     *
+     * @param project   the project name
+     * @param extraData specific extra data to use when clocking in, or null to use the
+     *                  default extra data
+     * @return  true, if the project was clocked in or out
+     */
+    boolean toggleClockInOut(String project, String extraData) {
+        ClockCommand command = new ClockCommand(ClockCommand.TOGGLE, project, extraData);
+        applyBatch(Collections.singletonList(command));
+        return command.applied;
+    }
+
+    /**
+     * Clocks projects in and out, in order, within a single transaction. This allows
+     * e.g. switching from one project to another atomically, or clocking out of every
+     * project at once. Commands which can't be applied (e.g. clocking in a project which
+     * is already clocked in, or a project which doesn't exist or was just deleted) are
+     * skipped, and the others are still applied. All the
+     * commands use the same time.
+     *
+     * @param commands  the commands, whose results are set once the batch is committed
+     * @return  the number of commands which were applied
+     */
+    int applyBatch(List<ClockCommand> commands) {
+        long now = System.currentTimeMillis();
+        // The current timecard of each project after the batch
+        Map<String, Long> currentTimecards = new HashMap<>();
+        int applied = 0;
+        mDatabase.beginTransaction();
+        try {
+            for (ClockCommand command : commands) {
+                Metadata metadata = getProjectMetadata(command.projectName);
+                if (metadata == null) {
+                    // Project does not exist
+                    continue;
                 }
-                // Update the metadata to show that we're clocked out
-                setMetadataValue(project, KEY_CURRENT_TIMECARD, -1);
-                // Get the time of the most recent event
-                int timeInSeconds = 0;
-                // Get the elapsed time of all the timecard entries
-                Cursor cursor = mDatabase.rawQuery(
-                        "SELECT strftime('%s'," + KEY_END_TIME + ") - " +
-                               "strftime('%s'," + KEY_START_TIME + ") AS 'time' " +
-                        "FROM '" + project + "'" +
-                        "WHERE rowid=?;",
-                        new String[] {Integer.toString(rowID)});
-                int timeIndex = cursor.getColumnIndex("time");
-                while (cursor.moveToNext()) {
-                    timeInSeconds += cursor.getInt(timeIndex);
+                // Read the current timecard within the transaction, since it may have
+                // been changed by an earlier command in this batch
+                Long currentTimecard = queryCurrentTimecard(metadata.projectId);
+                if (currentTimecard == null) {
+                    // The project was deleted since its metadata was read, so this
+                    // command fails without failing the rest of the batch
+                    continue;
+                }
+                int action = command.action;
+                if (action == ClockCommand.TOGGLE) {
+                    action = currentTimecard != -1 ?
+                            ClockCommand.CLOCK_OUT : ClockCommand.CLOCK_IN;
+                }
+                if (action == ClockCommand.CLOCK_IN) {
+                    // Project must not already be clocked in
+                    if (currentTimecard == -1) {
+                        long rowId = insertEntry(metadata, command.extraData, now);
+                        if (!metadata.noDuration) {
+                            currentTimecards.put(command.projectName, rowId);
+                        }
+                        command.applied = true;
+                    }
+                } else if (currentTimecard != -1) {
+                    // The project is clocked in, so clock it out
+                    long startTime = closeEntry(metadata, currentTimecard.intValue(), now);
+                    currentTimecards.put(command.projectName, -1L);
+                    command.duration = (int)((now - startTime) / 1000);
+                    command.applied = true;
+                }
+                if (command.applied) {
+                    command.appliedAction = action;
+                    applied++;
                 }
-                cursor.close();
-                return timeInSeconds;
-            } else {
-                // Project is not clocked in -- must be clocked in first
-                return -1;
             }
-        } else {
-            // Project does not exist
-            return -1;
+            mDatabase.setTransactionSuccessful();
+        } finally {
+            mDatabase.endTransaction();
+        }
+        // Update the cached metadata, then publish the changes
+        for (Map.Entry<String, Long> currentTimecard : currentTimecards.entrySet()) {
+            setCachedCurrentTimecard(currentTimecard.getKey(), currentTimecard.getValue());
+        }
+        for (ClockCommand command : commands) {
+            if (command.applied) {
+                publishChange(command.appliedAction == ClockCommand.CLOCK_IN ?
+                                      ProjectEvents.CLOCKED_IN : ProjectEvents.CLOCKED_OUT,
+                              command.projectName);
+            }
         }
+        return applied;
     }
 
-    boolean toggleClockInOut(String project, String extraData) {
-        // Attempt to clock the project in -- it's either already clocked in
-        // and will return false, or doesn't exist and will return false
-        if (!clockIn(project, extraData)) {
-            // Attempt to clock the project out. We know it's already clocked
-            // in or doesn't exist. Return the result of clocking out which is
-            // either success clocking out, or false if an error (i.e. the project
-            // doesn't exist or there was a problem with the database).
-            return clockOut(project) != -1;
-        }
-        // The project was able to be clocked in -- return success
-        return true;
+    /**
+     * Reads a project's current timecard from the database, within a transaction
+     *
+     * @param projectId the project ID
+     * @return  the rowid of the project's ongoing entry, -1 if it isn't clocked in, or
+     *          null if the project no longer exists
+     */
+    private Long queryCurrentTimecard(int projectId) {
+        SQLiteStatement statement = getStatement(SQL_CURRENT_TIMECARD);
+        statement.bindLong(1, projectId);
+        try {
+            return statement.simpleQueryForLong();
+        } catch (SQLiteDoneException exception) {
+            return null;
+        }
     }
 
     /**
-     * Returns the amount of time the project has been clocked in over its lifetime
+     * Clocks a project in, as part of the caller's transaction
      *
-     * @param project the project name
-     * @return -1 if the project doesn't exist, >= 0 in seconds
+     * @param metadata  the project's metadata
+     * @param extra     specific extra data to use, or null to use the default extra data
+     * @param now       the current time
+     * @return  the rowid of the new entry
      */
-    int getProjectTime(String project) {
-        if (exists(project)) {
-            int timeInSeconds = 0;
-            // Get the elapsed time of all the timecard entries
-            Cursor cursor = mDatabase.rawQuery(
-                    "SELECT strftime('%s'," + KEY_END_TIME + ") - " +
-                           "strftime('%s'," + KEY_START_TIME + ") AS 'time' " +
-                    "FROM '" + project + "'" +
-                    "WHERE " + KEY_END_TIME + " IS NOT NULL;", null);
-            int timeIndex = cursor.getColumnIndex("time");
+    private long insertEntry(Metadata metadata, String extra, long now) {
+        // If this project is labeled as "no duration" then set the end time too
+        Long endTime = metadata.noDuration ? now : null;
+        // If the project is uses extra data, then insert it
+        String extraData = null;
+        if (metadata.usesExtraData || extra != null) {
+            extraData = extra != null ? extra : metadata.defaultExtraData;
+        }
+        // Add a new row to the timecard
+        SQLiteStatement insertEntry = getStatement(SQL_INSERT_ENTRY);
+        insertEntry.bindLong(1, metadata.projectId);
+        insertEntry.bindLong(2, now);
+        bindValue(insertEntry, 3, endTime);
+        bindValue(insertEntry, 4, extraData);
+        long rowId = insertEntry.executeInsert();
+        if (rowId == -1) {
+            throw new RuntimeException("Unable to clock in to '" + metadata.projectName + "'");
+        }
+        // If "no duration" flag is not set (default), then save the row id of the
+        // incomplete row, to signify that the project is "clocked in"
+        if (!metadata.noDuration && !updateCurrentTimecard(metadata.projectId, -1, rowId)) {
+            throw new RuntimeException("Unable to clock in to '" + metadata.projectName + "'");
+        }
+        // Add the new row to the project's statistics
+        SQLiteStatement statistics = getStatement(SQL_CLOCK_IN_STATISTICS);
+        statistics.bindLong(1, now);
+        bindValue(statistics, 2, endTime);
+        bindValue(statistics, 3, extraData);
+        statistics.bindLong(4, metadata.projectId);
+        statistics.executeUpdateDelete();
+        return rowId;
+    }
+
+    /**
+     * Clocks a project out, as part of the caller's transaction
+     *
+     * @param metadata  the project's metadata
+     * @param rowId     the rowid of the project's ongoing entry
+     * @param now       the current time
+     * @return  the start time of the entry
+     */
+    private long closeEntry(Metadata metadata, int rowId, long now) {
+        String project = metadata.projectName;
+        if (!updateCurrentTimecard(metadata.projectId, rowId, -1)) {
+            throw new RuntimeException("Unable to clock out of '" + project + "'");
+        }
+        SQLiteStatement entryStart = getStatement(SQL_ENTRY_START);
+        entryStart.bindLong(1, rowId);
+        long startTime;
+        try {
+            startTime = entryStart.simpleQueryForLong();
+        } catch (SQLiteDoneException exception) {
+            throw new RuntimeException("Unable to clock out of '" + project + "'");
+        }
+        // Add the stop time to the timecard
+        SQLiteStatement closeEntry = getStatement(SQL_CLOSE_ENTRY);
+        closeEntry.bindLong(1, now);
+        closeEntry.bindLong(2, rowId);
+        // If unable to update the row, then there was an error clocking out
+        if (closeEntry.executeUpdateDelete() == 0) {
+            throw new RuntimeException("Unable to clock out of '" + project + "'");
+        }
+        // Add the completed entry to the project's statistics
+        SQLiteStatement statistics = getStatement(SQL_CLOCK_OUT_STATISTICS);
+        statistics.bindLong(1, now);
+        statistics.bindLong(2, startTime);
+        statistics.bindLong(3, metadata.projectId);
+        statistics.executeUpdateDelete();
+        return startTime;
+    }
+
+    /**
+     * Returns an SQL expression which is true when the operand is a plain decimal number
+     * (e.g. "12", "-0.5", or "1.5e3"), as Double.parseDouble() would read it. Dates, times,
+     * and ranges such as "2017-05-03" or "1-2" aren't numbers, although CAST(... AS REAL)
+     * would read a number from the start of them.
+     *
+     * @param operand   an SQL expression (e.g. a column name or parameter)
+     * @return  an SQL boolean expression
+     */
+    private static String isNumber(String operand) {
+        String text = "LOWER(TRIM(" + operand + "))";
+        // Signs may only start the number or its exponent
+        String unsigned = "SUBSTR(REPLACE(REPLACE(" + text + ",'e+','e'),'e-','e'),2)";
+        return "(" + text + " GLOB '*[0-9]*' AND " +
+               text + " NOT GLOB '*[^0-9.e+-]*' AND " +
+               // At most one decimal point and one exponent, with no point in the exponent
+               "LENGTH(" + text + ")-LENGTH(REPLACE(" + text + ",'.',''))<=1 AND " +
+               "LENGTH(" + text + ")-LENGTH(REPLACE(" + text + ",'e',''))<=1 AND " +
+               text + " NOT GLOB '*e*.*' AND " +
+               unsigned + " NOT GLOB '*[+-]*' AND " +
+               text + " NOT GLOB '*[+-][+-]*' AND " +
+               // Both the number and its exponent need digits
+               text + " NOT GLOB 'e*' AND " +
+               text + " NOT GLOB '[+.-]e*' AND " +
+               text + " NOT GLOB '[+-].e*' AND " +
+               "(" + text + " NOT GLOB '*e*' OR " + text + " GLOB '*[0-9]'))";
+    }
+
+    /**
+     * Recomputes a project's statistics from its timecard entries
+     *
+     * @param sqLiteDatabase    the database
+     * @param projectId         the project's rowid
+     */
+    private static void recomputeStatistics(SQLiteDatabase sqLiteDatabase, int projectId) {
+        sqLiteDatabase.execSQL(
+                "INSERT OR REPLACE INTO " + STATS_TABLE + " (" +
+                    KEY_PROJECT_ID + "," + KEY_ROW_COUNT + "," + KEY_TOTAL_MILLIS + "," +
+                    KEY_NUMERIC_EXTRA_SUM + "," + KEY_NUMERIC_EXTRA_COUNT + "," +
+                    KEY_FIRST_START + "," + KEY_LAST_START + "," +
+                    KEY_LAST_END + "," + KEY_OPEN_START + ") " +
+                "SELECT ?1,COUNT(*)," +
+                       // An ongoing entry has a NULL end time and is not summed
+                       "IFNULL(SUM(" + KEY_END_TIME + "-" + KEY_START_TIME + "),0)," +
+                       "IFNULL(SUM(CASE WHEN " + isNumber(KEY_EXTRA_DATA) + " " +
+                           "THEN CAST(TRIM(" + KEY_EXTRA_DATA + ") AS REAL) END),0)," +
+                       "COUNT(CASE WHEN " + isNumber(KEY_EXTRA_DATA) + " THEN 1 END)," +
+                       "MIN(" + KEY_START_TIME + "),MAX(" + KEY_START_TIME + ")," +
+                       "(SELECT " + KEY_END_TIME + " FROM " + ENTRIES_TABLE + " " +
+                        "WHERE " + KEY_PROJECT_ID + "=?1 " +
+                        "ORDER BY " + KEY_START_TIME + " DESC, rowid DESC LIMIT 1)," +
+                       "(SELECT " + KEY_START_TIME + " FROM " + ENTRIES_TABLE + " " +
+                        "WHERE " + KEY_PROJECT_ID + "=?1 AND " + KEY_END_TIME + " IS NULL " +
+                        "ORDER BY " + KEY_START_TIME + " DESC LIMIT 1) " +
+                "FROM " + ENTRIES_TABLE + " " +
+                "WHERE " + KEY_PROJECT_ID + "=?1;",
+                new Object[] {projectId});
+    }
+
+    /**
+     * Discards and recomputes the statistics of every project
+     *
+     * @param sqLiteDatabase    the database
+     */
+    private static void recomputeAllStatistics(SQLiteDatabase sqLiteDatabase) {
+        sqLiteDatabase.delete(STATS_TABLE, null, null);
+        Cursor cursor = sqLiteDatabase.rawQuery(
+                "SELECT rowid FROM " + PROJECTS_TABLE + ";", null);
+        try {
             while (cursor.moveToNext()) {
-                timeInSeconds += cursor.getInt(timeIndex);
+                recomputeStatistics(sqLiteDatabase, cursor.getInt(0));
             }
+        } finally {
             cursor.close();
-            // Get the elapsed time of an ongoing timecard entry
-            cursor = mDatabase.rawQuery(
-                    "SELECT strftime('%s','" + getDateTime(null) + "') - " +
-                           "strftime('%s'," + KEY_START_TIME + ") AS 'time' " +
-                    "FROM '" + project + "'" +
-                    "WHERE " + KEY_END_TIME + " IS NULL;", null);
-            timeIndex = cursor.getColumnIndex("time");
-            while (cursor.moveToNext()) {
-                timeInSeconds += cursor.getInt(timeIndex);
+        }
+    }
+
+    /**
+     * Rebuilds the statistics of every project from the timecard entries. The
+     * statistics are kept up to date as entries change, so this is only needed to
+     * recover from statistics which no longer match the entries.
+     */
+    void rebuildStatistics() {
+        mDatabase.beginTransaction();
+        try {
+            recomputeAllStatistics(mDatabase);
+            mDatabase.setTransactionSuccessful();
+        } finally {
+            mDatabase.endTransaction();
+        }
+        ProjectEvents.post(new ProjectEvents.Event(
+                ProjectEvents.DATABASE_REPLACED, mDatabaseName, null, null, null));
+    }
+
+    /**
+     * Returns the aggregate Statistics of a project's timecard entries
+     *
+     * @param project   the project name
+     * @return  the project's Statistics, or null if the project doesn't exist
+     */
+    Statistics getStatistics(String project) {
+        int projectId = getProjectId(project);
+        if (projectId == -1) {
+            return null;
+        }
+        Statistics statistics = new Statistics();
+        statistics.queryTime = System.currentTimeMillis();
+        String[] selectionArgs = new String[] {Integer.toString(projectId)};
+        Cursor cursor = mDatabase.query(STATS_TABLE, null, KEY_PROJECT_ID + "=?",
+                                        selectionArgs, null, null, null);
+        if (cursor.getCount() == 0) {
+            // The statistics are missing, so compute them from the entries
+            cursor.close();
+            recomputeStatistics(mDatabase, projectId);
+            cursor = mDatabase.query(STATS_TABLE, null, KEY_PROJECT_ID + "=?",
+                                     selectionArgs, null, null, null);
+        }
+        try {
+            if (cursor.moveToFirst()) {
+                statistics.count = cursor.getInt(cursor.getColumnIndex(KEY_ROW_COUNT));
+                statistics.totalMillis = cursor.getLong(cursor.getColumnIndex(KEY_TOTAL_MILLIS));
+                statistics.firstStartMillis =
+                        cursor.getLong(cursor.getColumnIndex(KEY_FIRST_START));
+                statistics.extraDataSum =
+                        cursor.getDouble(cursor.getColumnIndex(KEY_NUMERIC_EXTRA_SUM));
+                statistics.extraDataCount =
+                        cursor.getInt(cursor.getColumnIndex(KEY_NUMERIC_EXTRA_COUNT));
+                // An ongoing entry is counted up to the current time
+                int openStartIndex = cursor.getColumnIndex(KEY_OPEN_START);
+                if (!cursor.isNull(openStartIndex)) {
+                    statistics.open = true;
+                    statistics.openStartMillis = cursor.getLong(openStartIndex);
+                    statistics.totalMillis +=
+                            statistics.queryTime - cursor.getLong(openStartIndex);
+                }
+                // A NULL end time means the last entry is ongoing
+                int lastEndIndex = cursor.getColumnIndex(KEY_LAST_END);
+                if (!cursor.isNull(lastEndIndex)) {
+                    statistics.lastEndMillis = cursor.getLong(lastEndIndex);
+                } else if (statistics.count > 0) {
+                    statistics.lastEndMillis = statistics.queryTime;
+                }
             }
+        } finally {
             cursor.close();
-            return timeInSeconds;
+        }
+        return statistics;
+    }
+
+    /**
+     * Returns the amount of time the project has been clocked in over its lifetime
+     *
+     * @param project the project name
+     * @return -1 if the project doesn't exist, >= 0 in seconds
+     */
+    int getProjectTime(String project) {
+        Statistics statistics = getStatistics(project);
+        if (statistics != null) {
+            return (int)(statistics.totalMillis / 1000);
         } else {
             // Project doesn't exist
             return -1;
@@ -750,11 +1808,408 @@ class ProjectData {
     }
 
     void close(Context context) {
-        mDBHelper.close();
+        if (mDatabase != null) {
+            DatabaseHolder.release(mDatabaseName);
+            mDatabase = null;
+        }
         // Release the database lock
         DatabaseLock.release(context, DatabaseLock.DATABASE);
     }
 
+    /**
+     * Writes a transactionally consistent copy of the database into a new database file.
+     * The rows are read within a single read transaction on a separate connection (see
+     * openReader()), so neither readers nor writers wait for the copy. The copy has the
+     * current schema, and its statistics are recomputed from its entries.
+     *
+     * @param context   a Context
+     * @param file      the database file to create, which is replaced if it exists
+     * @return  the change log sequence number which the copy is up to date with, or -1 if
+     *          the database couldn't be opened (e.g. it's being restored)
+     */
+    long exportSnapshot(Context context, File file) {
+        if (mDatabase == null) {
+            return -1;
+        }
+        long sequence;
+        SQLiteDatabase.deleteDatabase(file);
+        // The snapshot is a plain, journaled database so that it's a single file. It's
+        // created without the change log triggers, so the copied rows aren't logged.
+        SQLiteOpenHelper openHelper = new ProjectDataOpenHelper(
+                context.getApplicationContext(), file.getPath(), false);
+        SQLiteDatabase snapshot = openHelper.getWritableDatabase();
+        try {
+            snapshot.beginTransaction();
+            try {
+                SQLiteDatabase reader = openReader();
+                try {
+                    // Every row is read from the same version of the database
+                    beginReadTransaction(reader);
+                    try {
+                        copyTable(reader, snapshot, PROJECTS_TABLE);
+                        copyTable(reader, snapshot, ENTRIES_TABLE);
+                        sequence = getChangeSequence(reader);
+                    } finally {
+                        endReadTransaction(reader);
+                    }
+                } finally {
+                    reader.close();
+                }
+                recomputeAllStatistics(snapshot);
+                // Changes made once the snapshot is restored are logged as usual
+                ProjectDataOpenHelper.createChangeLogTriggers(snapshot);
+                snapshot.setTransactionSuccessful();
+            } finally {
+                snapshot.endTransaction();
+            }
+        } finally {
+            openHelper.close();
+        }
+        return sequence;
+    }
+
+    /**
+     * Opens a separate, read-only connection to this database, for reading it in a read
+     * transaction which doesn't hold up the shared connection. The database is in WAL
+     * mode, so the reader keeps seeing the version of the database its transaction
+     * started with while writers carry on committing.
+     *
+     * @return  the connection, which the caller must close
+     */
+    private SQLiteDatabase openReader() {
+        return SQLiteDatabase.openDatabase(mDatabase.getPath(), null,
+                                           SQLiteDatabase.OPEN_READONLY);
+    }
+
+    /**
+     * Begins a deferred transaction on a connection from openReader().
+     * SQLiteDatabase.beginTransaction() always begins an immediate or exclusive
+     * transaction, which takes the write lock. A SAVEPOINT outside of a transaction
+     * begins a deferred one instead, which only reads.
+     *
+     * @param reader    the connection
+     */
+    private static void beginReadTransaction(SQLiteDatabase reader) {
+        reader.execSQL("SAVEPOINT " + READ_TRANSACTION + ";");
+    }
+
+    /**
+     * Ends a transaction begun by beginReadTransaction()
+     *
+     * @param reader    the connection
+     */
+    private static void endReadTransaction(SQLiteDatabase reader) {
+        reader.execSQL("RELEASE " + READ_TRANSACTION + ";");
+    }
+
+    /**
+     * Returns the sequence number of the last change written to the change log, which
+     * changes whenever the data changes
+     *
+     * @return  the last change log sequence number, 0 if nothing was ever logged, or -1
+     *          if the database couldn't be opened
+     */
+    long getChangeSequence() {
+        if (mDatabase == null) {
+            return -1;
+        }
+        return getChangeSequence(mDatabase);
+    }
+
+    private static long getChangeSequence(SQLiteDatabase sqLiteDatabase) {
+        Cursor cursor = sqLiteDatabase.rawQuery(
+                "SELECT seq FROM sqlite_sequence WHERE name=?;",
+                new String[] {CHANGE_LOG_TABLE});
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Writes every row changed since a change log sequence number. Each row is written
+     * once, as it is now (or as deleted), so the changes can be applied in any order by
+     * applyChanges(). The change log and the rows are read within a single read
+     * transaction on a separate connection (see openReader()), so the changes are
+     * consistent with the returned sequence number without holding up writers.
+     *
+     * @param sequence  the sequence number of the last change not to write
+     * @param out       the output to write the changes to
+     * @return  the sequence number of the last change written (sequence, if nothing has
+     *          changed since), or -1 if the database couldn't be opened
+     * @throws IOException  if the changes can't be written
+     */
+    long exportChanges(long sequence, DataOutputStream out) throws IOException {
+        if (mDatabase == null) {
+            return -1;
+        }
+        long lastSequence = sequence;
+        SQLiteDatabase reader = openReader();
+        try {
+            beginReadTransaction(reader);
+            try {
+                Cursor cursor = reader.rawQuery(
+                        "SELECT " + KEY_TABLE_NAME + "," + KEY_ROW_ID + "," +
+                            "MAX(" + KEY_SEQUENCE + ") " +
+                        "FROM " + CHANGE_LOG_TABLE + " WHERE " + KEY_SEQUENCE + ">? " +
+                        "GROUP BY " + KEY_TABLE_NAME + "," + KEY_ROW_ID + ";",
+                        new String[] {Long.toString(sequence)});
+                try {
+                    out.writeInt(cursor.getCount());
+                    while (cursor.moveToNext()) {
+                        writeChange(reader, out, cursor.getString(0), cursor.getLong(1));
+                        lastSequence = Math.max(lastSequence, cursor.getLong(2));
+                    }
+                } finally {
+                    cursor.close();
+                }
+            } finally {
+                endReadTransaction(reader);
+            }
+        } finally {
+            reader.close();
+        }
+        return lastSequence;
+    }
+
+    /**
+     * Writes the current values of a row, or a deletion if the row no longer exists
+     *
+     * @param reader    the connection to read the row from
+     * @param out       the output to write the change to
+     * @param table     the table name
+     * @param rowId     the rowid of the row
+     * @throws IOException  if the change can't be written
+     */
+    private static void writeChange(SQLiteDatabase reader, DataOutputStream out,
+                                    String table, long rowId) throws IOException {
+        out.writeUTF(table);
+        out.writeLong(rowId);
+        Cursor cursor = reader.rawQuery("SELECT rowid,* FROM " + table + " WHERE rowid=?;",
+                                        new String[] {Long.toString(rowId)});
+        try {
+            if (!cursor.moveToFirst()) {
+                out.writeByte(CHANGE_DELETED);
+                return;
+            }
+            out.writeByte(CHANGE_REPLACED);
+            String[] columnNames = cursor.getColumnNames();
+            out.writeInt(columnNames.length);
+            for (int i = 0; i < columnNames.length; i++) {
+                out.writeUTF(columnNames[i]);
+                switch (cursor.getType(i)) {
+                    case Cursor.FIELD_TYPE_INTEGER:
+                        out.writeByte(VALUE_INTEGER);
+                        out.writeLong(cursor.getLong(i));
+                        break;
+                    case Cursor.FIELD_TYPE_FLOAT:
+                        out.writeByte(VALUE_FLOAT);
+                        out.writeDouble(cursor.getDouble(i));
+                        break;
+                    case Cursor.FIELD_TYPE_STRING:
+                        out.writeByte(VALUE_STRING);
+                        writeString(out, cursor.getString(i));
+                        break;
+                    case Cursor.FIELD_TYPE_BLOB:
+                        byte[] blob = cursor.getBlob(i);
+                        out.writeByte(VALUE_BLOB);
+                        out.writeInt(blob.length);
+                        out.write(blob);
+                        break;
+                    default:
+                        out.writeByte(VALUE_NULL);
+                        break;
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Writes a value as its length and its UTF-8 bytes. Unlike writeUTF(), this isn't
+     * limited to 64 KiB, which a note in the extra data could exceed.
+     *
+     * @param out   the output to write the value to
+     * @param value the value
+     * @throws IOException  if the value can't be written
+     */
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Reads a value written by writeString()
+     *
+     * @param in    the input to read the value from
+     * @return  the value
+     * @throws IOException  if the value can't be read
+     */
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            throw new IOException("Invalid string length: " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    /**
+     * Removes the changes which have been backed up from the change log
+     *
+     * @param sequence  the sequence number of the last change to remove
+     */
+    void pruneChanges(long sequence) {
+        if (mDatabase == null) {
+            return;
+        }
+        mDatabase.delete(CHANGE_LOG_TABLE, KEY_SEQUENCE + "<=?",
+                         new String[] {Long.toString(sequence)});
+    }
+
+    /**
+     * Applies changes written by exportChanges() to a database which isn't in use (i.e.
+     * one being restored). Call finishApplyingChanges() after the last changes are applied.
+     *
+     * @param sqLiteDatabase    the database
+     * @param in                the input to read the changes from
+     * @throws IOException  if the changes can't be read
+     */
+    static void applyChanges(SQLiteDatabase sqLiteDatabase, DataInputStream in)
+            throws IOException {
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            String table = in.readUTF();
+            if (!PROJECTS_TABLE.equals(table) && !ENTRIES_TABLE.equals(table)) {
+                throw new IOException("Unknown table: " + table);
+            }
+            long rowId = in.readLong();
+            if (in.readByte() == CHANGE_DELETED) {
+                sqLiteDatabase.delete(table, "rowid=?", new String[] {Long.toString(rowId)});
+                continue;
+            }
+            ContentValues values = new ContentValues();
+            int columnCount = in.readInt();
+            for (int column = 0; column < columnCount; column++) {
+                String columnName = in.readUTF();
+                switch (in.readByte()) {
+                    case VALUE_INTEGER:
+                        values.put(columnName, in.readLong());
+                        break;
+                    case VALUE_FLOAT:
+                        values.put(columnName, in.readDouble());
+                        break;
+                    case VALUE_STRING:
+                        values.put(columnName, readString(in));
+                        break;
+                    case VALUE_BLOB:
+                        byte[] blob = new byte[in.readInt()];
+                        in.readFully(blob);
+                        values.put(columnName, blob);
+                        break;
+                    default:
+                        values.putNull(columnName);
+                        break;
+                }
+            }
+            // Replacing a row also removes any row whose unique project name it takes,
+            // which is itself among the changes if the final state is consistent
+            sqLiteDatabase.insertWithOnConflict(table, null, values,
+                                                SQLiteDatabase.CONFLICT_REPLACE);
+        }
+    }
+
+    /**
+     * Upgrades a database file which isn't in use (i.e. one being restored) to the
+     * current schema, so that changes written by exportChanges() can be applied to it
+     *
+     * @param context   a Context
+     * @param file      the database file
+     */
+    static void upgradeDatabase(Context context, File file) {
+        SQLiteOpenHelper openHelper = new ProjectDataOpenHelper(
+                context.getApplicationContext(), file.getPath());
+        try {
+            openHelper.getWritableDatabase();
+        } finally {
+            openHelper.close();
+        }
+    }
+
+    /**
+     * Brings a database up to date after changes were applied with applyChanges()
+     *
+     * @param sqLiteDatabase    the database
+     */
+    static void finishApplyingChanges(SQLiteDatabase sqLiteDatabase) {
+        // The applied changes were logged again, and are already in the backup
+        sqLiteDatabase.delete(CHANGE_LOG_TABLE, null, null);
+        recomputeAllStatistics(sqLiteDatabase);
+    }
+
+    /**
+     * Copies every row of a table, rowids included, into the same table of another
+     * database
+     *
+     * @param source    the database to copy the rows from
+     * @param target    the database to copy the rows into
+     * @param table     the table name
+     */
+    private static void copyTable(SQLiteDatabase source, SQLiteDatabase target,
+                                  String table) {
+        Cursor cursor = source.rawQuery("SELECT rowid,* FROM " + table + ";", null);
+        SQLiteStatement insert = null;
+        try {
+            // Build the insert from the column names, starting with the rowid
+            String[] columnNames = cursor.getColumnNames();
+            StringBuilder columns = new StringBuilder();
+            StringBuilder values = new StringBuilder();
+            for (int i = 0; i < columnNames.length; i++) {
+                if (i > 0) {
+                    columns.append(',');
+                    values.append(',');
+                }
+                columns.append('"').append(columnNames[i]).append('"');
+                values.append('?');
+            }
+            insert = target.compileStatement("INSERT INTO " + table + " (" + columns + ") " +
+                                             "VALUES (" + values + ");");
+            while (cursor.moveToNext()) {
+                insert.clearBindings();
+                for (int i = 0; i < columnNames.length; i++) {
+                    // Keep the storage class of each value
+                    switch (cursor.getType(i)) {
+                        case Cursor.FIELD_TYPE_INTEGER:
+                            insert.bindLong(i + 1, cursor.getLong(i));
+                            break;
+                        case Cursor.FIELD_TYPE_FLOAT:
+                            insert.bindDouble(i + 1, cursor.getDouble(i));
+                            break;
+                        case Cursor.FIELD_TYPE_STRING:
+                            insert.bindString(i + 1, cursor.getString(i));
+                            break;
+                        case Cursor.FIELD_TYPE_BLOB:
+                            insert.bindBlob(i + 1, cursor.getBlob(i));
+                            break;
+                        default:
+                            insert.bindNull(i + 1);
+                            break;
+                    }
+                }
+                insert.executeInsert();
+            }
+        } finally {
+            if (insert != null) {
+                insert.close();
+            }
+            cursor.close();
+        }
+    }
+
     /**
      * Locks the database (no writes allowed) by beginning an immediate transaction
      * which acquires a RESERVED lock on the database. Call unlock() to end the
@@ -782,13 +2237,16 @@ class ProjectData {
         if (context == null) {
             throw new RuntimeException("Unable to export: no Context found.");
         }
-        if (exists(project)) {
-            // Get the extra data column title or use a the database column name
-            Metadata metadata = getProjectMetadata(project);
+        // Get the extra data column title or use a the database column name
+        Metadata metadata = getProjectMetadata(project);
+        if (metadata != null) {
             if (TextUtils.isEmpty(metadata.extraDataTitle)) {
                 metadata.extraDataTitle = KEY_EXTRA_DATA;
             }
-            Cursor cursor = mDatabase.rawQuery("SELECT * FROM '" + project + "';", null);
+            Cursor cursor = mDatabase.query(ENTRIES_TABLE, PROJECT_COLUMNS,
+                                            KEY_PROJECT_ID + "=?",
+                                            new String[] {Integer.toString(metadata.projectId)},
+                                            null, null, KEY_START_TIME);
             try {
                 os.write((KEY_START_TIME + "," + KEY_END_TIME + "," +
                          context.getString(R.string.delta_seconds) + "," +
@@ -797,16 +2255,17 @@ class ProjectData {
                 int startIndex = cursor.getColumnIndex(KEY_START_TIME);
                 int endIndex = cursor.getColumnIndex(KEY_END_TIME);
                 int extraIndex = cursor.getColumnIndex(KEY_EXTRA_DATA);
+                // Export the times in the same local time format used by earlier versions
+                SimpleDateFormat dateFormat = new SimpleDateFormat(
+                        "yyyy-MM-dd HH:mm:ss", Locale.getDefault());
                 while (cursor.moveToNext()) {
-                    String start = cursor.getString(startIndex);
-                    String end = cursor.getString(endIndex);
+                    long startMillis = cursor.getLong(startIndex);
+                    String start = dateFormat.format(new Date(startMillis));
+                    String end = null;
                     String timeInSeconds = "";
-                    if (!TextUtils.isEmpty(start) && !TextUtils.isEmpty(end)) {
-                        Calendar calendar = Calendar.getInstance(Locale.getDefault());
-                        calendar.setTime(getDate(start));
-                        long startMillis = calendar.getTimeInMillis();
-                        calendar.setTime(getDate(end));
-                        long endMillis = calendar.getTimeInMillis();
+                    if (!cursor.isNull(endIndex)) {
+                        long endMillis = cursor.getLong(endIndex);
+                        end = dateFormat.format(new Date(endMillis));
                         timeInSeconds = Long.toString((endMillis - startMillis)/1000);
                     }
                     String output = start + "," + end + "," + timeInSeconds + "," +
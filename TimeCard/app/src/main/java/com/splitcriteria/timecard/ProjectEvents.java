@@ -0,0 +1,195 @@
+package com.splitcriteria.timecard;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Timecard - Allows users to easily track time-based data for analysis.
+ * Copyright (C) 2017  Nicholas Johnson
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Timecard - Copyright (C) 2017  Nicholas Johnson
+ *
+ * This program comes with ABSOLUTELY NO WARRANTY; for details type `show w'.
+ * This is free software, and you are welcome to redistribute it
+ * under certain conditions; type `show c' for details.
+ *
+ * Publishes the changes made to projects through ProjectData to any interested
+ * listeners (e.g. adapters, widgets, and notifications). Each Event carries the
+ * project's metadata and statistics after the change, so most listeners can update
+ * themselves without querying the database. Events are delivered on the main thread.
+ * Every project also has a data version, which changes whenever an event is posted for
+ * it, so that values computed from a project's data can be cached. Events and data
+ * versions are per database, since different databases may have the same project names.
+ */
+
+class ProjectEvents {
+
+    static final int PROJECT_ADDED = 0;
+    static final int PROJECT_DELETED = 1;
+    static final int PROJECT_RENAMED = 2;
+    static final int PROJECT_ARCHIVED = 3;
+    static final int METADATA_CHANGED = 4;
+    static final int CLOCKED_IN = 5;
+    static final int CLOCKED_OUT = 6;
+    static final int ROWS_CHANGED = 7;
+    static final int DATABASE_REPLACED = 8;
+
+    static class Event {
+        // One of the event types above
+        final int type;
+        // The name of the database the change was made in
+        final String databaseName;
+        // The changed project, or null if any project may have changed (e.g. the
+        // database was replaced)
+        final String projectName;
+        // The project's metadata and statistics after the change, or null if the project
+        // no longer exists. These are shared by all listeners and must not be modified.
+        final ProjectData.Metadata metadata;
+        final ProjectData.Statistics statistics;
+        // The project's data version after the change, assigned when the event is posted
+        long version;
+
+        Event(int type, String databaseName, String projectName,
+              ProjectData.Metadata metadata, ProjectData.Statistics statistics) {
+            this.type = type;
+            this.databaseName = databaseName;
+            this.projectName = projectName;
+            this.metadata = metadata;
+            this.statistics = statistics;
+        }
+    }
+
+    interface OnProjectChangedListener {
+        void onProjectChanged(Event event);
+    }
+
+    private static final List<WeakReference<OnProjectChangedListener>> sListeners =
+            new ArrayList<>();
+    private static final Handler sHandler = new Handler(Looper.getMainLooper());
+
+    // The data version of each project which changed since its database was replaced,
+    // keyed by the database name and then by the project name
+    private static final Map<String, Map<String, Long>> sVersions = new HashMap<>();
+    // The data version of the projects of each database which haven't changed since then
+    private static final Map<String, Long> sBaseVersions = new HashMap<>();
+    private static long sLatestVersion;
+
+    /**
+     * Returns the data version of a project. Anything computed from the project's
+     * data is out of date once its data version changes.
+     *
+     * @param databaseName  the name of the project's database
+     * @param projectName   the project name
+     * @return  the project's data version
+     */
+    static long getVersion(String databaseName, String projectName) {
+        synchronized (sVersions) {
+            Map<String, Long> versions = sVersions.get(databaseName);
+            Long version = versions != null ? versions.get(projectName) : null;
+            if (version == null) {
+                version = sBaseVersions.get(databaseName);
+            }
+            return version != null ? version : 0;
+        }
+    }
+
+    /**
+     * Adds a listener (as a WeakReference) which will be called (if it still exists)
+     * whenever a project changes
+     *
+     * @param listener  an instance of OnProjectChangedListener
+     */
+    static void addListener(OnProjectChangedListener listener) {
+        synchronized (sListeners) {
+            for (WeakReference<OnProjectChangedListener> listenerRef : sListeners) {
+                if (listenerRef.get() == listener) {
+                    return;
+                }
+            }
+            sListeners.add(new WeakReference<>(listener));
+        }
+    }
+
+    /**
+     * Removes a listener, if it exists
+     *
+     * @param listener  an OnProjectChangedListener
+     */
+    static void removeListener(OnProjectChangedListener listener) {
+        synchronized (sListeners) {
+            Iterator<WeakReference<OnProjectChangedListener>> iterator = sListeners.iterator();
+            while (iterator.hasNext()) {
+                OnProjectChangedListener existingListener = iterator.next().get();
+                if (existingListener == null || existingListener == listener) {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Publishes an event to the listeners on the main thread. This may be called
+     * from any thread.
+     *
+     * @param event the Event
+     */
+    static void post(final Event event) {
+        // Change the data version right away (on the writing thread), so that nothing
+        // read after the change is cached under the old version
+        synchronized (sVersions) {
+            event.version = ++sLatestVersion;
+            if (event.type == DATABASE_REPLACED) {
+                sVersions.remove(event.databaseName);
+                sBaseVersions.put(event.databaseName, event.version);
+            } else if (event.projectName != null) {
+                Map<String, Long> versions = sVersions.get(event.databaseName);
+                if (versions == null) {
+                    versions = new HashMap<>();
+                    sVersions.put(event.databaseName, versions);
+                }
+                versions.put(event.projectName, event.version);
+            }
+        }
+        sHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                // Copy the listeners, since they may add or remove listeners when called
+                List<OnProjectChangedListener> listeners = new ArrayList<>();
+                synchronized (sListeners) {
+                    Iterator<WeakReference<OnProjectChangedListener>> iterator =
+                            sListeners.iterator();
+                    while (iterator.hasNext()) {
+                        OnProjectChangedListener listener = iterator.next().get();
+                        if (listener != null) {
+                            listeners.add(listener);
+                        } else {
+                            iterator.remove();
+                        }
+                    }
+                }
+                for (OnProjectChangedListener listener : listeners) {
+                    listener.onProjectChanged(event);
+                }
+            }
+        });
+    }
+}
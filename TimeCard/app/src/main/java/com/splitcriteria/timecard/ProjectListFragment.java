@@ -128,7 +128,7 @@ public class ProjectListFragment extends ResultFragment implements
                         public void onClick(View view) {
                             // The project is only archived after the dismissal, so we
                             // just need to add the project name back to the adapter
-                            mAdapter.add(getActivity(), projectName);
+                            mAdapter.restore(projectName);
                         }
                     });
                     sb.addCallback(new Snackbar.Callback() {
@@ -183,7 +183,7 @@ public class ProjectListFragment extends ResultFragment implements
                             public void onClick(View view) {
                                 // The project is only deleted/un-archived after the dismissal,
                                 // so we just need to add the project name back to the adapter
-                                mAdapter.add(getActivity(), projectName);
+                                mAdapter.restore(projectName);
                             }
                         });
                         // Add a callback to handle the deletion or un-archive after the
@@ -223,21 +223,30 @@ public class ProjectListFragment extends ResultFragment implements
     @Override
     public void onResume() {
         super.onResume();
-        refreshProjectNames();
+        // The adapter keeps itself up to date through ProjectEvents, so it only
+        // needs its click listener back
+        mAdapter.addOnProjectClickedListener(this);
+        mAdapter.setPaused(false);
     }
 
     @Override
     public void onPause() {
         super.onPause();
         mAdapter.removeOnProjectClickedListener(this);
+        mAdapter.setPaused(true);
     }
 
     private void refreshProjectNames() {
-        ProjectData projectData = new ProjectData(getActivity());
-        mAdapter = new ProjectAdapter(getActivity(), mShowingArchived);
-        mAdapter.addOnProjectClickedListener(this);
-        projectData.close(getActivity());
-        mRecyclerView.swapAdapter(mAdapter, true);
+        // The projects are loaded in the background, so the list is shown right away
+        if (mAdapter == null) {
+            mAdapter = new ProjectAdapter(getActivity(), mShowingArchived);
+            mAdapter.addOnProjectClickedListener(this);
+        } else {
+            mAdapter.setArchived(mShowingArchived);
+        }
+        if (mRecyclerView.getAdapter() != mAdapter) {
+            mRecyclerView.setAdapter(mAdapter);
+        }
         if (mShowingArchived) {
             mCurrentProjectsItemTouchHelper.attachToRecyclerView(null);
             mArchivedProjectsItemTouchHelper.attachToRecyclerView(mRecyclerView);
@@ -456,7 +465,6 @@ public class ProjectListFragment extends ResultFragment implements
                         alert(activity.getString(R.string.error_title),
                                 activity.getString(R.string.error_create, projectName));
                     }
-                    refreshProjectNames();
                 }
                 projectData.close(activity);
             }
@@ -495,8 +503,6 @@ public class ProjectListFragment extends ResultFragment implements
             ProjectData projectData = new ProjectData(getActivity());
             projectData.renameProject(projectName, displayName);
             projectData.close(getActivity());
-            // Notify the adapter the project's data has changed
-            mAdapter.updateProject(projectName);
             // Inform the user via Snackbar
             Snackbar.make(mRecyclerView,
                           getString(R.string.notification_project_renamed, displayName),
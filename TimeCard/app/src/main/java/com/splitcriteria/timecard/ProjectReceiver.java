@@ -9,6 +9,8 @@ import android.content.Intent;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.annotation.RequiresApi;
 import android.support.v4.app.NotificationCompat;
 import android.support.v4.app.RemoteInput;
@@ -16,8 +18,13 @@ import android.text.TextUtils;
 import android.widget.Toast;
 
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * Timecard - Allows users to easily track time-based data for analysis.
@@ -44,12 +51,18 @@ import java.util.Locale;
  * A receiver which clocks in/out projects and controls posting and dismissing
  * notifications which allow the user to continue controlling their projects
  * Use the ProjectReceiver.IntentBuilder to build an Intent or PendingIntent.
+ * Intents are handled one at a time on a background thread (using goAsync()), so that
+ * bursts of widget taps and notification actions don't block the main thread.
  */
 
 public class ProjectReceiver extends BroadcastReceiver {
 
     static final int NOTIFICATION_CLOCK_OUT_ID = 1;
     static final int NOTIFICATION_STICKY_ID = 2;
+    static final int NOTIFICATION_CLOCK_OUT_SUMMARY_ID = 3;
+    // The group of the clock out notifications posted by a batch, and the notification
+    // channel of the group's summary
+    private static final String CLOCK_OUT_GROUP = "clock_out";
 
     private static final String ACTION_ROOT = "com.splitcriteria.timecard.action.";
     static final String ACTION_CLOCK_IN = ACTION_ROOT + "CLOCK_IN";
@@ -58,11 +71,19 @@ public class ProjectReceiver extends BroadcastReceiver {
     static final String ACTION_POST_STICKY = ACTION_ROOT + "POST_STICKY";
     static final String ACTION_DISMISS = ACTION_ROOT + "DISMISS";
     static final String ACTION_DISMISS_STICKY = ACTION_ROOT + "DISMISS_STICKY";
+    static final String ACTION_CLOCK_BATCH = ACTION_ROOT + "CLOCK_BATCH";
 
     static final String KEY_FROM_STICKY = "from_sticky";
     static final String KEY_SUPPRESS_NOTIFICATION = "suppress_notification";
     static final String KEY_SUPPRESS_TOAST = "suppress_toast";
     static final String KEY_EXTRA_DATA = "extra_data";
+    static final String KEY_CLOCK_OUT_PROJECTS = "clock_out_projects";
+    static final String KEY_CLOCK_IN_PROJECTS = "clock_in_projects";
+    static final String KEY_CLOCK_OUT_ALL = "clock_out_all";
+
+    // Handles the received intents in order, off the main thread
+    private static final ExecutorService sWriteExecutor = Executors.newSingleThreadExecutor();
+    private static final Handler sHandler = new Handler(Looper.getMainLooper());
 
     /**
      * Convenience class for building an Intent or PendingIntent which contains
@@ -103,6 +124,20 @@ public class ProjectReceiver extends BroadcastReceiver {
             mIntent.putExtra(KEY_EXTRA_DATA, extraData);
             return this;
         }
+        // The projects to clock out, then clock in, with ACTION_CLOCK_BATCH
+        IntentBuilder setClockOutProjects(String... projectNames) {
+            mIntent.putExtra(KEY_CLOCK_OUT_PROJECTS, projectNames);
+            return this;
+        }
+        IntentBuilder setClockInProjects(String... projectNames) {
+            mIntent.putExtra(KEY_CLOCK_IN_PROJECTS, projectNames);
+            return this;
+        }
+        // Clock out of every project which is clocked in, with ACTION_CLOCK_BATCH
+        IntentBuilder setClockOutAll(boolean clockOutAll) {
+            mIntent.putExtra(KEY_CLOCK_OUT_ALL, clockOutAll);
+            return this;
+        }
         Intent build() {
             return mIntent;
         }
@@ -113,90 +148,69 @@ public class ProjectReceiver extends BroadcastReceiver {
     }
 
     @Override
-    public void onReceive(Context context, Intent intent) {
+    public void onReceive(Context context, final Intent intent) {
+        final Context applicationContext = context.getApplicationContext();
+        final PendingResult pendingResult = goAsync();
+        sWriteExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    handleIntent(applicationContext, intent);
+                } finally {
+                    pendingResult.finish();
+                }
+            }
+        });
+    }
+
+    /**
+     * Handles a received intent. This is called on the write executor, so the
+     * notifications are posted once the database changes have been committed.
+     *
+     * @param context   the application Context
+     * @param intent    the received Intent
+     */
+    private void handleIntent(Context context, Intent intent) {
         // Get the project name and the action from the Intent
-        String projectName = intent.getData().toString();
         String action = intent.getAction();
         boolean suppressToast = intent.getBooleanExtra(KEY_SUPPRESS_TOAST, false);
-        // Resolve the ACTION_TOGGLE to either ACTION_CLOCK_IN or ACTION_CLOCK_OUT
-        if (action.equals(ACTION_CLOCK_TOGGLE)) {
-            action = getToggleAction(context, projectName);
+        // A batch names its projects in extras instead of the data
+        if (action.equals(ACTION_CLOCK_BATCH)) {
+            handleBatch(context, intent, suppressToast);
+            return;
         }
-        String databaseFilename = context.getString(R.string.default_database_filename);
+        String projectName = intent.getData().toString();
         // Handle the intent actions
         switch (action) {
-            case ACTION_CLOCK_IN: {
-                // Get any extra data associated with clocking in
-                String extraData = intent.getStringExtra(KEY_EXTRA_DATA);
-                // If this intent was from a remote input (i.e. a notification) then
-                // override the extraData with the RemoteInput data
-                String remoteData = getRemoteData(intent);
-                boolean hasRemoteData = remoteData != null;
-                // Clock the project in
-                ProjectData pd = new ProjectData(context, databaseFilename);
-                pd.clockIn(projectName, hasRemoteData ? remoteData : extraData);
-                ProjectData.Metadata metadata = pd.getProjectMetadata(projectName);
-                pd.close(context);
-                // If no extra data is given, check for default data
-                if (metadata.usesExtraData && TextUtils.isEmpty(extraData)) {
-                    extraData = metadata.defaultExtraData;
-                }
-                if (!suppressToast && !hasRemoteData) {
-                    Toast.makeText(
-                            context,
-                            context.getString(metadata.noDuration ?
-                                            R.string.broadcast_clock_in_instant :
-                                            R.string.broadcast_clock_in,
-                                    context.getString(R.string.app_name),
-                                    projectName),
-                            Toast.LENGTH_LONG).show();
-                }
-                // If the data came from a notification, then reply to it
-                if (intent.getBooleanExtra(KEY_FROM_STICKY, false)) {
-                    postStickyNotification(context, projectName,
-                            getStickyNotificationMessage(context, metadata,
-                                    hasRemoteData ? remoteData : extraData, -1));
-                } else if (!metadata.noDuration
-                        && !intent.getBooleanExtra(KEY_SUPPRESS_NOTIFICATION, false)) {
-                    // Post a clock out notification if this project is not "instant"
-                    postNotification(context, projectName);
-                }
+            case ACTION_CLOCK_IN:
+                handleClock(context, intent, ProjectData.ClockCommand.CLOCK_IN,
+                            projectName, suppressToast);
                 break;
-            }
-            case ACTION_CLOCK_OUT: {
-                ProjectData pd = new ProjectData(context, databaseFilename);
-                int duration = pd.clockOut(projectName);
-                ProjectData.Metadata metadata = pd.getProjectMetadata(projectName);
-                pd.close(context);
-                if (intent.getBooleanExtra(KEY_FROM_STICKY, false)) {
-                    postStickyNotification(context, projectName,
-                            getStickyNotificationMessage(context, metadata, null, duration));
-                } else {
-                    dismissNotification(context, projectName);
-                }
-                if (!suppressToast) {
-                    Toast.makeText(
-                            context,
-                            context.getString(R.string.broadcast_clock_out,
-                                    context.getString(R.string.app_name),
-                                    projectName),
-                            Toast.LENGTH_LONG).show();
-                }
+            case ACTION_CLOCK_OUT:
+                handleClock(context, intent, ProjectData.ClockCommand.CLOCK_OUT,
+                            projectName, suppressToast);
+                break;
+            case ACTION_CLOCK_TOGGLE:
+                // Resolved to a clock in or out within the write transaction, so it
+                // always acts on the committed state rather than the snapshot
+                handleClock(context, intent, ProjectData.ClockCommand.TOGGLE,
+                            projectName, suppressToast);
                 break;
-            }
             case ACTION_DISMISS:
                 dismissNotification(context, projectName);
                 break;
             case ACTION_POST_STICKY: {
-                ProjectData projectData = new ProjectData(context, databaseFilename);
-                ProjectData.Metadata metadata = projectData.getProjectMetadata(projectName);
-                projectData.close(context);
-                int messageID = metadata.noDuration ?
+                ClockState.State state = getClockState(context, projectName);
+                if (state == null) {
+                    // Project does not exist
+                    break;
+                }
+                int messageID = state.noDuration ?
                         R.string.notification_sticky_mark_time_instructions :
-                        metadata.currentTimecard == -1 ?
+                        !state.clockedIn ?
                                 R.string.notification_sticky_clock_in_instructions :
                                 R.string.notification_sticky_clock_out_instructions;
-                postStickyNotification(context, projectName, context.getString(messageID));
+                postStickyNotification(context, state, context.getString(messageID));
                 break;
             }
             case ACTION_DISMISS_STICKY:
@@ -205,12 +219,197 @@ public class ProjectReceiver extends BroadcastReceiver {
         }
     }
 
-    private String getToggleAction(Context context, String projectName) {
+    /**
+     * Clocks a project in or out (or toggles it) and then shows a Toast and updates
+     * the notifications according to what was actually committed
+     *
+     * @param context       the application Context
+     * @param intent        the received Intent
+     * @param clockAction   ClockCommand.CLOCK_IN, CLOCK_OUT or TOGGLE
+     * @param projectName   the project name
+     * @param suppressToast true to not show a Toast
+     */
+    private void handleClock(Context context, Intent intent, int clockAction,
+                             String projectName, boolean suppressToast) {
+        // Get any extra data associated with clocking in
+        String extraData = intent.getStringExtra(KEY_EXTRA_DATA);
+        // If this intent was from a remote input (i.e. a notification) then
+        // override the extraData with the RemoteInput data
+        String remoteData = getRemoteData(intent);
+        boolean hasRemoteData = remoteData != null;
+        ProjectData.ClockCommand command = new ProjectData.ClockCommand(
+                clockAction, projectName, hasRemoteData ? remoteData : extraData);
+        ProjectData pd = new ProjectData(
+                context, context.getString(R.string.default_database_filename));
+        pd.applyBatch(Collections.singletonList(command));
+        ProjectData.Metadata metadata = pd.getProjectMetadata(projectName);
+        pd.close(context);
+        if (!command.applied || metadata == null) {
+            // Nothing was committed, so there's nothing to notify
+            if (!suppressToast) {
+                int messageID = clockAction == ProjectData.ClockCommand.CLOCK_IN ?
+                        R.string.broadcast_clock_in_failed :
+                        clockAction == ProjectData.ClockCommand.CLOCK_OUT ?
+                                R.string.broadcast_clock_out_failed :
+                                R.string.broadcast_clock_toggle_failed;
+                showToast(context, context.getString(messageID,
+                                                     context.getString(R.string.app_name),
+                                                     projectName));
+            }
+            return;
+        }
+        boolean fromSticky = intent.getBooleanExtra(KEY_FROM_STICKY, false);
+        if (command.appliedAction == ProjectData.ClockCommand.CLOCK_IN) {
+            // If no extra data is given, check for default data
+            if (metadata.usesExtraData && TextUtils.isEmpty(extraData)) {
+                extraData = metadata.defaultExtraData;
+            }
+            if (!suppressToast && !hasRemoteData) {
+                showToast(context,
+                          context.getString(metadata.noDuration ?
+                                            R.string.broadcast_clock_in_instant :
+                                            R.string.broadcast_clock_in,
+                                            context.getString(R.string.app_name),
+                                            projectName));
+            }
+            // If the data came from a notification, then reply to it
+            if (fromSticky) {
+                postStickyNotification(context, getClockState(context, projectName),
+                        getStickyNotificationMessage(context, metadata,
+                                hasRemoteData ? remoteData : extraData, -1));
+            } else if (!metadata.noDuration
+                    && !intent.getBooleanExtra(KEY_SUPPRESS_NOTIFICATION, false)) {
+                // Post a clock out notification if this project is not "instant"
+                postNotification(context, projectName);
+            }
+        } else {
+            if (fromSticky) {
+                postStickyNotification(context, getClockState(context, projectName),
+                        getStickyNotificationMessage(context, metadata, null,
+                                                     command.duration));
+            } else {
+                dismissNotification(context, projectName);
+            }
+            if (!suppressToast) {
+                showToast(context,
+                          context.getString(R.string.broadcast_clock_out,
+                                            context.getString(R.string.app_name),
+                                            projectName));
+            }
+        }
+    }
+
+    /**
+     * Clocks out of and then into the projects of an ACTION_CLOCK_BATCH intent in a single
+     * transaction, and then updates the notifications and shows one Toast for the
+     * whole batch. The clock out notifications of the batch are posted as one group,
+     * under a single summary notification which clocks out of everything.
+     *
+     * @param context       the application Context
+     * @param intent        the received Intent
+     * @param suppressToast true to not show a Toast
+     */
+    private void handleBatch(Context context, Intent intent, boolean suppressToast) {
         ProjectData projectData = new ProjectData(
                 context, context.getString(R.string.default_database_filename));
-        String action = projectData.isClockedIn(projectName) ? ACTION_CLOCK_OUT : ACTION_CLOCK_IN;
+        List<ProjectData.ClockCommand> commands = new ArrayList<>();
+        String[] clockOutProjects = intent.getStringArrayExtra(KEY_CLOCK_OUT_PROJECTS);
+        if (clockOutProjects != null) {
+            for (String projectName : clockOutProjects) {
+                commands.add(new ProjectData.ClockCommand(
+                        ProjectData.ClockCommand.CLOCK_OUT, projectName, null));
+            }
+        }
+        boolean clockOutAll = intent.getBooleanExtra(KEY_CLOCK_OUT_ALL, false);
+        if (clockOutAll) {
+            // Projects which aren't clocked in are skipped within the transaction, so
+            // this doesn't depend on reading the clock states first
+            for (boolean archived : new boolean[] {false, true}) {
+                for (String projectName : projectData.getProjectNames(archived)) {
+                    commands.add(new ProjectData.ClockCommand(
+                            ProjectData.ClockCommand.CLOCK_OUT, projectName, null));
+                }
+            }
+        }
+        String[] clockInProjects = intent.getStringArrayExtra(KEY_CLOCK_IN_PROJECTS);
+        if (clockInProjects != null) {
+            for (String projectName : clockInProjects) {
+                commands.add(new ProjectData.ClockCommand(
+                        ProjectData.ClockCommand.CLOCK_IN, projectName, null));
+            }
+        }
+        projectData.applyBatch(commands);
+        int clockedOut = 0;
+        int clockedIn = 0;
+        boolean suppressNotification =
+                intent.getBooleanExtra(KEY_SUPPRESS_NOTIFICATION, false);
+        List<String> notifiedProjects = new ArrayList<>();
+        for (ProjectData.ClockCommand command : commands) {
+            if (!command.applied) {
+                continue;
+            }
+            if (command.appliedAction == ProjectData.ClockCommand.CLOCK_OUT) {
+                dismissNotification(context, command.projectName);
+                clockedOut++;
+            } else {
+                ProjectData.Metadata metadata =
+                        projectData.getProjectMetadata(command.projectName);
+                if (metadata != null && !metadata.noDuration && !suppressNotification) {
+                    notifiedProjects.add(command.projectName);
+                }
+                clockedIn++;
+            }
+        }
         projectData.close(context);
-        return action;
+        if (clockOutAll) {
+            dismissClockOutSummary(context);
+        }
+        if (!notifiedProjects.isEmpty()) {
+            for (String projectName : notifiedProjects) {
+                postNotification(context, projectName, CLOCK_OUT_GROUP);
+            }
+            postClockOutSummary(context, notifiedProjects);
+        }
+        if (!suppressToast && clockedOut + clockedIn > 0) {
+            showToast(context, context.getString(R.string.broadcast_clock_batch,
+                                                 context.getString(R.string.app_name),
+                                                 clockedOut, clockedIn));
+        }
+    }
+
+    /**
+     * Shows a Toast on the main thread
+     *
+     * @param context   a Context
+     * @param text      the text to show
+     */
+    private void showToast(final Context context, final String text) {
+        sHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                Toast.makeText(context, text, Toast.LENGTH_LONG).show();
+            }
+        });
+    }
+
+    /**
+     * Returns the clock state of a project from the memory-mapped snapshot, only
+     * opening the database if the project isn't in the snapshot
+     *
+     * @param context       a Context
+     * @param projectName   the project name
+     * @return  the project's clock state, or null if the project doesn't exist
+     */
+    private ClockState.State getClockState(Context context, String projectName) {
+        String databaseFilename = context.getString(R.string.default_database_filename);
+        ClockState.State state =
+                ClockState.forDatabase(context, databaseFilename).get(projectName);
+        if (state == null) {
+            ProjectData projectData = new ProjectData(context, databaseFilename);
+            state = projectData.getProjectClockState(projectName);
+            projectData.close(context);
+        }
+        return state;
     }
 
     private String getRemoteData(Intent intent) {
@@ -292,6 +491,19 @@ public class ProjectReceiver extends BroadcastReceiver {
         }
     }
 
+    /**
+     * Dismisses all the notifications of a project (e.g. after it has been deleted)
+     *
+     * @param context       a Context
+     * @param projectName   the project name
+     */
+    static void dismissAllNotifications(Context context, String projectName) {
+        NotificationManager notificationManager =
+                (NotificationManager)context.getSystemService(Context.NOTIFICATION_SERVICE);
+        notificationManager.cancel(projectName, NOTIFICATION_CLOCK_OUT_ID);
+        notificationManager.cancel(projectName, NOTIFICATION_STICKY_ID);
+    }
+
     private void dismissNotification(Context context, String projectName) {
         NotificationManager notificationManager =
                 (NotificationManager)context.getSystemService(Context.NOTIFICATION_SERVICE);
@@ -305,6 +517,17 @@ public class ProjectReceiver extends BroadcastReceiver {
     }
 
     private void postNotification(Context context, String projectName) {
+        postNotification(context, projectName, null);
+    }
+
+    /**
+     * Posts a clock out notification for a project
+     *
+     * @param context       a Context
+     * @param projectName   the project name
+     * @param group         the notification group to post it in, or null for none
+     */
+    private void postNotification(Context context, String projectName, String group) {
         // Create the notification channel (if Oreo or greater)
         createNotificationChannel(context, projectName, false);
 
@@ -316,6 +539,9 @@ public class ProjectReceiver extends BroadcastReceiver {
                         context.getString(R.string.notification_text_clock_out, projectName))
                 .setAutoCancel(true)
                 .setOngoing(true);
+        if (group != null) {
+            builder.setGroup(group);
+        }
 
         // Build an intent to clock out the project using a broadcast receiver
         PendingIntent projectPendingIntent =
@@ -329,7 +555,62 @@ public class ProjectReceiver extends BroadcastReceiver {
         notificationManager.notify(projectName, NOTIFICATION_CLOCK_OUT_ID, builder.build());
     }
 
-    private void postStickyNotification(Context context, String projectName, String message) {
+    /**
+     * Posts the summary of the clock out notifications of a batch. Where the system
+     * doesn't show grouped notifications individually this is the only one shown, so
+     * clicking it clocks out of every project.
+     *
+     * @param context       a Context
+     * @param projectNames  the projects whose clock out notifications were posted
+     */
+    private void postClockOutSummary(Context context, List<String> projectNames) {
+        String title = context.getResources().getQuantityString(
+                R.plurals.notification_title_clock_out_summary,
+                projectNames.size(), projectNames.size());
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            NotificationManager notificationManager =
+                    (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
+            notificationManager.createNotificationChannel(new NotificationChannel(
+                    CLOCK_OUT_GROUP,
+                    context.getString(R.string.notification_channel_description_summary),
+                    NotificationManager.IMPORTANCE_HIGH));
+        }
+        NotificationCompat.InboxStyle style = new NotificationCompat.InboxStyle()
+                .setBigContentTitle(title);
+        for (String projectName : projectNames) {
+            style.addLine(projectName);
+        }
+        NotificationCompat.Builder builder =
+                new NotificationCompat.Builder(context, CLOCK_OUT_GROUP)
+                        .setSmallIcon(R.drawable.ic_clock_out)
+                        .setContentTitle(title)
+                        .setContentText(context.getString(R.string.notification_text_clock_out_all))
+                        .setStyle(style)
+                        .setGroup(CLOCK_OUT_GROUP)
+                        .setGroupSummary(true)
+                        .setAutoCancel(true)
+                        .setContentIntent(new IntentBuilder(context, null)
+                                                  .setAction(ACTION_CLOCK_BATCH)
+                                                  .setClockOutAll(true)
+                                                  .buildPendingIntent());
+        NotificationManager notificationManager =
+                (NotificationManager)context.getSystemService(Context.NOTIFICATION_SERVICE);
+        notificationManager.notify(NOTIFICATION_CLOCK_OUT_SUMMARY_ID, builder.build());
+    }
+
+    private void dismissClockOutSummary(Context context) {
+        NotificationManager notificationManager =
+                (NotificationManager)context.getSystemService(Context.NOTIFICATION_SERVICE);
+        notificationManager.cancel(NOTIFICATION_CLOCK_OUT_SUMMARY_ID);
+    }
+
+    private void postStickyNotification(Context context, ClockState.State state,
+                                        String message) {
+        if (state == null) {
+            // Project does not exist
+            return;
+        }
+        String projectName = state.projectName;
         // Create the notification channel (if Oreo or greater)
         createNotificationChannel(context, projectName, true);
 
@@ -338,18 +619,14 @@ public class ProjectReceiver extends BroadcastReceiver {
                 .setLabel(context.getString(R.string.notification_extra_data_instruction))
                 .build();
 
-        ProjectData projectData = new ProjectData(
-                context, context.getString(R.string.default_database_filename));
-        ProjectData.Metadata metadata = projectData.getProjectMetadata(projectName);
-        projectData.close(context);
-        boolean isClockedIn = metadata.currentTimecard != -1;
+        boolean isClockedIn = state.clockedIn;
 
         // Add a Clock In/Out or Mark Time action
         int stringID;
         if (isClockedIn) {
             stringID = R.string.clock_out;
         } else {
-            stringID = metadata.noDuration ? R.string.clock_in_instant : R.string.clock_in;
+            stringID = state.noDuration ? R.string.clock_in_instant : R.string.clock_in;
         }
         NotificationCompat.Action clockInOut = new NotificationCompat.Action.Builder(
                 0, context.getString(stringID),
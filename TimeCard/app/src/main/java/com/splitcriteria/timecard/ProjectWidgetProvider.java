@@ -58,17 +58,11 @@ public class ProjectWidgetProvider extends AppWidgetProvider {
     static void setupWidget(Context context, String projectName, int id) {
         AppWidgetManager appWidgetManager = AppWidgetManager.getInstance(context);
 
-        // Get any default extra data
-        ProjectData projectData = new ProjectData(
-                context, context.getString(R.string.default_database_filename));
-        ProjectData.Metadata metadata = projectData.getProjectMetadata(projectName);
-        projectData.close(context);
-        String extraData = metadata.usesExtraData ? metadata.defaultExtraData : null;
-
-        // Create a broadcast intent to clock in/out the widget
+        // Create a broadcast intent to clock in/out the widget. No extra data is given,
+        // so the project's default extra data is used when it's clocked in. This way,
+        // the widget doesn't need to read the project's metadata.
         PendingIntent pendingIntent = new ProjectReceiver.IntentBuilder(context, projectName)
                 .setAction(ProjectReceiver.ACTION_CLOCK_TOGGLE)
-                .setExtraData(extraData)
                 .buildPendingIntent();
 
         // Set up the widget views
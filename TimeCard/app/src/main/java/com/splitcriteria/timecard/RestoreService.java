@@ -1,25 +1,33 @@
 package com.splitcriteria.timecard;
 
 import android.app.Service;
-import android.content.ContentResolver;
 import android.content.Intent;
 import android.content.SharedPreferences;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
 import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Binder;
 import android.os.IBinder;
+import android.os.ParcelFileDescriptor;
 import android.preference.PreferenceManager;
 import android.support.annotation.Nullable;
 import android.text.TextUtils;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -52,6 +60,9 @@ import java.util.List;
 
 public class RestoreService extends Service {
 
+    // Suffix of the file the database is rebuilt in before it replaces the database
+    private static final String RESTORED_SUFFIX = ".restored";
+
     private final IBinder mBinder = new RestoreBinder();
 
     private boolean mRestoreRequested = false;
@@ -67,7 +78,9 @@ public class RestoreService extends Service {
     interface OnRestoredListener {
         // TODO include a client/user option to confirm restore?
         // boolean onPreRestore(differences between databases)
-        void onRestored(boolean success, String errorMsg);
+        // The message is the error if the restore failed, and may be a warning (e.g. the
+        // backup was only partly restored) or empty if it succeeded
+        void onRestored(boolean success, String message);
     }
 
     @Nullable
@@ -171,11 +184,11 @@ public class RestoreService extends Service {
         return mRestoreRequested && mRestoreCompleted;
     }
 
-    private void callOnRestoreListeners(boolean success, String errorMsg) {
+    private void callOnRestoreListeners(boolean success, String message) {
         for (WeakReference<OnRestoredListener> listenerRefs : mListeners) {
             OnRestoredListener listener = listenerRefs.get();
             if (listener != null) {
-                listener.onRestored(success, errorMsg);
+                listener.onRestored(success, message);
             }
         }
     }
@@ -191,42 +204,57 @@ public class RestoreService extends Service {
                             getString(R.string.error_restore_database_locked)));
             return;
         }
+        // Close the shared connection before the database file is replaced
+        if (!DatabaseHolder.close(getString(R.string.default_database_filename))) {
+            DatabaseLock.release(this, DatabaseLock.RESTORE);
+            callOnRestoreListeners(false,
+                    getString(R.string.error_restore_title,
+                            getString(R.string.error_restore_database_locked)));
+            return;
+        }
         // Get a reference to the database location
         // Create the task which restores the database from a backup
         new AsyncTask<Uri, Void, String>() {
 
+            // True if the end of the backup was cut short or corrupt, and left out
+            private boolean mPartial;
+
             @Override
             protected String doInBackground(Uri... uris) {
                 Uri restoreFromUri = uris[0];
                 Uri targetUri = uris[1];
                 try {
-                    // Open the input and output streams
-                    ContentResolver contentResolver = getContentResolver();
-                    InputStream in = contentResolver.openInputStream(restoreFromUri);
-                    if (in == null) {
+                    // Read the backup through its file descriptor, so the bytes are moved
+                    // by the kernel rather than through the Java heap
+                    ParcelFileDescriptor descriptor =
+                            getContentResolver().openFileDescriptor(restoreFromUri, "r");
+                    if (descriptor == null) {
                         return getString(R.string.error_restore_title,
                                 getString(R.string.error_restore_unable_to_open_source));
                     }
-                    in = new BufferedInputStream(in);
-                    OutputStream out = contentResolver.openOutputStream(targetUri, "w");
-                    if (out == null) {
-                        return getString(R.string.error_restore_title,
-                                getString(R.string.error_restore_unable_to_open_target));
-                    }
-                    out = new BufferedOutputStream(out);
-                    // Copy the restored file to the target location
-                    byte[] buffer = new byte[
-                            getResources().getInteger(R.integer.buffer_size_bytes)];
-                    int bytesRead;
-                    while ((bytesRead = in.read(buffer)) > 0) {
-                        out.write(buffer, 0, bytesRead);
+                    try {
+                        FileChannel in = new FileInputStream(
+                                descriptor.getFileDescriptor()).getChannel();
+                        // A pipe (e.g. from a streaming provider) has no size
+                        boolean seekable = descriptor.getStatSize() >= 0;
+                        mPartial = !restoreBackup(in, seekable, targetUri.getPath());
+                    } finally {
+                        descriptor.close();
                     }
-                    in.close();
-                    out.close();
                 } catch (FileNotFoundException e) {
                     return getString(R.string.error_restore_title, e.getMessage());
+                } catch (BackupArchive.CorruptBackupException e) {
+                    return getString(R.string.error_restore_title,
+                            getString(R.string.error_restore_corrupt));
+                } catch (EOFException e) {
+                    return getString(R.string.error_restore_title,
+                            getString(R.string.error_restore_truncated));
                 } catch (IOException e) {
                     return getString(R.string.error_restore_title, e.getMessage());
+                } catch (SQLiteException e) {
+                    // The restored database couldn't be upgraded or have the changes
+                    // applied, and the database lock must still be released
+                    return getString(R.string.error_restore_title, e.getMessage());
                 }
                 // Return an empty String as success
                 return "";
@@ -234,13 +262,189 @@ public class RestoreService extends Service {
 
             @Override
             protected void onPostExecute(String result) {
+                // The database has been replaced, so any cached project data is stale, and
+                // the change log no longer follows on from the last backup
+                ProjectData.invalidateCache();
+                BackupArchive.resetIncrementalBackup(RestoreService.this);
+                ProjectEvents.post(new ProjectEvents.Event(
+                        ProjectEvents.DATABASE_REPLACED,
+                        getString(R.string.default_database_filename), null, null, null));
                 // Release the database lock and set the restore completed flag
                 DatabaseLock.release(RestoreService.this, DatabaseLock.RESTORE);
                 mRestoreCompleted = true;
                 // Inform any listeners that the database is restored
-                callOnRestoreListeners(TextUtils.isEmpty(result), result);
+                boolean success = TextUtils.isEmpty(result);
+                callOnRestoreListeners(success, success && mPartial ?
+                        getString(R.string.toast_restore_partial) : result);
             }
 
         }.execute(restoreFromUri, targetUri);
     }
+
+    /**
+     * Writes the database from a backup. A backup is either a plain database file, as
+     * written by earlier versions, or a base snapshot followed by the changes made since.
+     * The database is rebuilt in a separate file, which only replaces the database once
+     * the whole backup has been read and checked.
+     *
+     * @param in            the backup
+     * @param seekable      true if the backup is a file, false if it's a pipe
+     * @param databasePath  the path of the database file to write
+     * @return  true if the whole backup was restored, or false if a delta segment at its
+     *          end was cut short or corrupt, in which case the database is restored up to
+     *          the delta before it
+     * @throws IOException  if the backup can't be read, isn't a backup, or its base
+     *                      snapshot is corrupt
+     */
+    private boolean restoreBackup(FileChannel in, boolean seekable, String databasePath)
+            throws IOException {
+        boolean complete = true;
+        File restored = new File(databasePath + RESTORED_SUFFIX);
+        SQLiteDatabase.deleteDatabase(restored);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(BackupArchive.HEADER_SIZE);
+            BackupArchive.readFully(in, header);
+            header.flip();
+            if (BackupArchive.isDatabaseFile(header)) {
+                // The whole backup is the database file, which has nothing to check it by.
+                // It's moved in chunks until none is left, by the kernel if the backup is
+                // a file. A pipe can't be transferred from, so it's copied through a buffer.
+                FileChannel out = new FileOutputStream(restored).getChannel();
+                try {
+                    long position = out.write(header);
+                    int chunkSize = getResources().getInteger(R.integer.buffer_size_bytes);
+                    if (seekable) {
+                        long bytesRead;
+                        while ((bytesRead = out.transferFrom(in, position, chunkSize)) > 0) {
+                            position += bytesRead;
+                        }
+                    } else {
+                        ByteBuffer buffer = ByteBuffer.allocate(chunkSize);
+                        while (in.read(buffer) != -1) {
+                            buffer.flip();
+                            while (buffer.hasRemaining()) {
+                                out.write(buffer);
+                            }
+                            buffer.clear();
+                        }
+                    }
+                } finally {
+                    out.close();
+                }
+            } else {
+                BackupArchive.Segment base = BackupArchive.parseHeader(header);
+                if (base == null || base.type != BackupArchive.SEGMENT_BASE ||
+                        base.pageSize <= 0 || base.length % base.pageSize != 0) {
+                    throw new IOException(getString(R.string.error_restore_not_a_backup));
+                } else if (base.schemaVersion > ProjectData.DATABASE_VERSION) {
+                    throw new IOException(getString(R.string.error_restore_newer_version));
+                }
+                // Decompress the snapshot, which is checked as it's read
+                InputStream snapshot = new BackupArchive.SegmentInputStream(in, base, header);
+                OutputStream out = new FileOutputStream(restored);
+                try {
+                    byte[] buffer = new byte[
+                            getResources().getInteger(R.integer.buffer_size_bytes)];
+                    int bytesRead;
+                    while ((bytesRead = snapshot.read(buffer)) > 0) {
+                        out.write(buffer, 0, bytesRead);
+                    }
+                } finally {
+                    snapshot.close();
+                    out.close();
+                }
+                // The changes are written in the current schema, which an older base
+                // snapshot is upgraded to first
+                if (base.schemaVersion < ProjectData.DATABASE_VERSION) {
+                    ProjectData.upgradeDatabase(this, restored);
+                }
+                complete = applyDeltas(in, restored, base.toSequence);
+            }
+            // Remove any write-ahead log left by the replaced database, or it would be
+            // applied to the restored database when it's opened
+            new File(databasePath + "-wal").delete();
+            new File(databasePath + "-shm").delete();
+            // The clock states are read from the database until the snapshot is rebuilt
+            // from the restored database (see TimecardApplication)
+            ClockState.forDatabase(this, getString(R.string.default_database_filename))
+                    .invalidate();
+            if (!restored.renameTo(new File(databasePath))) {
+                throw new IOException(getString(R.string.error_restore_unable_to_open_target));
+            }
+        } finally {
+            // Only left behind if the restore failed
+            SQLiteDatabase.deleteDatabase(restored);
+        }
+        return complete;
+    }
+
+    /**
+     * Applies the delta segments of a backup to the restored base snapshot. Each delta is
+     * applied if it follows on from the ones before it. Anything else is left over from an
+     * earlier backup, and ends the backup. A delta which was only partly written, or is
+     * corrupt, also ends the backup, but the deltas before it are kept.
+     *
+     * @param in        the backup, positioned after the base segment
+     * @param restored  the restored database file
+     * @param sequence  the change log sequence number of the base segment
+     * @return  true if the backup ended cleanly, or false if a delta was cut short or
+     *          corrupt and was left out
+     * @throws IOException  if the backup can't be read
+     */
+    private boolean applyDeltas(FileChannel in, File restored, long sequence)
+            throws IOException {
+        boolean complete = true;
+        SQLiteDatabase database = SQLiteDatabase.openDatabase(restored.getPath(), null,
+                SQLiteDatabase.OPEN_READWRITE);
+        try {
+            database.beginTransaction();
+            try {
+                ByteBuffer header = ByteBuffer.allocate(BackupArchive.HEADER_SIZE);
+                while (true) {
+                    if (!BackupArchive.readFully(in, header)) {
+                        // The backup ends cleanly unless a header was cut short
+                        complete = header.position() == 0;
+                        break;
+                    }
+                    header.flip();
+                    BackupArchive.Segment delta = BackupArchive.parseHeader(header);
+                    if (delta == null || delta.type != BackupArchive.SEGMENT_DELTA ||
+                            delta.fromSequence != sequence) {
+                        break;
+                    }
+                    // Read the whole delta, so it's checked before any of it is applied
+                    ByteArrayOutputStream changes = new ByteArrayOutputStream();
+                    InputStream segment = new BackupArchive.SegmentInputStream(in, delta, header);
+                    try {
+                        byte[] buffer = new byte[
+                                getResources().getInteger(R.integer.buffer_size_bytes)];
+                        int bytesRead;
+                        while ((bytesRead = segment.read(buffer)) > 0) {
+                            changes.write(buffer, 0, bytesRead);
+                        }
+                    } catch (EOFException exception) {
+                        complete = false;
+                        break;
+                    } catch (BackupArchive.CorruptBackupException exception) {
+                        // Most likely torn by an interrupted append, like a cut short delta
+                        complete = false;
+                        break;
+                    } finally {
+                        segment.close();
+                    }
+                    ProjectData.applyChanges(database, new DataInputStream(
+                            new ByteArrayInputStream(changes.toByteArray())));
+                    sequence = delta.toSequence;
+                    header.clear();
+                }
+                ProjectData.finishApplyingChanges(database);
+                database.setTransactionSuccessful();
+            } finally {
+                database.endTransaction();
+            }
+        } finally {
+            database.close();
+        }
+        return complete;
+    }
 }
\ No newline at end of file
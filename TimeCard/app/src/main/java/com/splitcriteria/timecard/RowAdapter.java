@@ -35,21 +35,23 @@ import java.util.Locale;
  * This is free software, and you are welcome to redistribute it
  * under certain conditions; type `show c' for details.
  *
- * An Adapter which inherits from RecyclerView.Adapter and holds ProjectData.Row
- * This adapter provides a method to remove an item from the adapter, which is then
- * held in reserve in case the client wants to unremove it.
+ * An Adapter which inherits from RecyclerView.Adapter and shows the ProjectData.Rows
+ * of a RowPager. This adapter provides a method to remove an item from the adapter,
+ * which is then held in reserve in case the client wants to unremove it.
  */
 
 class RowAdapter extends RecyclerView.Adapter<RowAdapter.ViewHolder> implements
         View.OnClickListener {
 
-    private List<ProjectData.Row> mRows;
+    private RowPager mRows;
+    // Removed rows, sorted by their position in the RowPager
     private List<RemovedRow> mRemoved;
     private SimpleDateFormat mDateFormat = new SimpleDateFormat("yyyy-MM-dd", Locale.getDefault());
     private SimpleDateFormat mTimeFormat = new SimpleDateFormat("HH:mm", Locale.getDefault());
     private List<OnRowClickListener> mOnClickListeners;
 
     private class RemovedRow {
+        // The position of the row in the RowPager (not the adapter)
         int position;
         ProjectData.Row row;
     }
@@ -93,8 +95,7 @@ class RowAdapter extends RecyclerView.Adapter<RowAdapter.ViewHolder> implements
         }
     }
 
-    RowAdapter(List<ProjectData.Row> rows) {
-        // Add all the project names
+    RowAdapter(RowPager rows) {
         mRows = rows;
         mRemoved = new ArrayList<>();
         mOnClickListeners = new ArrayList<>();
@@ -109,7 +110,18 @@ class RowAdapter extends RecyclerView.Adapter<RowAdapter.ViewHolder> implements
 
     @Override
     public void onBindViewHolder(ViewHolder holder, int position) {
-        ProjectData.Row row = mRows.get(position);
+        ProjectData.Row row = getRow(position);
+        if (row == null) {
+            // The row count comes from the statistics, so it can be ahead of the rows
+            // (e.g. if rows were deleted elsewhere)
+            for (TextView view : new TextView[] {holder.mStartDate, holder.mStartTime,
+                                                 holder.mEndDate, holder.mEndTime,
+                                                 holder.mExtra}) {
+                view.setText(null);
+                view.setOnClickListener(null);
+            }
+            return;
+        }
         Date startTime = row.startTime.getTime();
         Date endTime = row.endTime == null ? null : row.endTime.getTime();
         holder.mStartDate.setText(mDateFormat.format(startTime));
@@ -132,44 +144,97 @@ class RowAdapter extends RecyclerView.Adapter<RowAdapter.ViewHolder> implements
 
     @Override
     public int getItemCount() {
-        return mRows.size();
+        return mRows.getCount() - mRemoved.size();
+    }
+
+    /**
+     * Converts an adapter position to a RowPager position by skipping over the
+     * removed rows
+     *
+     * @param adapterPosition   a position in the adapter
+     * @return  the position of the same row in the RowPager
+     */
+    private int getPagerPosition(int adapterPosition) {
+        int position = adapterPosition;
+        for (RemovedRow removed : mRemoved) {
+            if (removed.position <= position) {
+                position++;
+            } else {
+                break;
+            }
+        }
+        return position;
     }
 
     ProjectData.Row getRow(int position) {
-        return mRows.get(position);
+        return mRows.getRow(getPagerPosition(position));
+    }
+
+    /**
+     * Saves a changed Row (returned by getRow()) back to the adapter, and refreshes the
+     * row, or every row if the change moved it to another position
+     *
+     * @param position  the position of the row in the adapter
+     * @param row       the changed Row
+     */
+    void setRow(int position, ProjectData.Row row) {
+        if (mRows.setRow(getPagerPosition(position), row)) {
+            notifyItemChanged(position);
+        } else {
+            notifyDataSetChanged();
+        }
     }
 
     ProjectData.Row remove(int adapterPosition) {
-        ProjectData.Row row = mRows.remove(adapterPosition);
+        int position = getPagerPosition(adapterPosition);
+        ProjectData.Row row = mRows.getRow(position);
         if (row != null) {
             // Update the adapter
             notifyItemRemoved(adapterPosition);
-            // Cache the row in the unremoved list
+            // Cache the row in the unremoved list, keeping the list sorted
             RemovedRow removedRow = new RemovedRow();
-            removedRow.position = adapterPosition;
+            removedRow.position = position;
             removedRow.row = row;
-            mRemoved.add(removedRow);
+            int index = 0;
+            while (index < mRemoved.size() && mRemoved.get(index).position < position) {
+                index++;
+            }
+            mRemoved.add(index, removedRow);
         }
         return row;
     }
 
     boolean unRemove(int rowId) {
-        RemovedRow unremoved = null;
-        for (RemovedRow removed : mRemoved) {
+        for (int i = 0; i < mRemoved.size(); i++) {
+            RemovedRow removed = mRemoved.get(i);
             if (removed.row.id == rowId) {
-                mRows.add(removed.position, removed.row);
-                notifyItemInserted(removed.position);
-                // Save a pointer to the object to remove it later
-                unremoved = removed;
-                break;
+                // The removed rows before this one aren't shown in the adapter
+                mRemoved.remove(i);
+                notifyItemInserted(removed.position - i);
+                return true;
             }
         }
-        // If a row was reinserted, then remove it from the removed list
-        if (unremoved !=  null) {
-            mRemoved.remove(unremoved);
-            return true;
-        } else {
-            return false;
+        return false;
+    }
+
+    /**
+     * Forgets a removed row once it has been deleted from the database, since it
+     * can no longer be unremoved
+     *
+     * @param rowId the id of the deleted row
+     */
+    void onRowDeleted(int rowId) {
+        for (int i = 0; i < mRemoved.size(); i++) {
+            RemovedRow removed = mRemoved.get(i);
+            if (removed.row.id == rowId) {
+                mRemoved.remove(i);
+                // The rows after the deleted row have moved up in the RowPager
+                for (int j = i; j < mRemoved.size(); j++) {
+                    mRemoved.get(j).position--;
+                }
+                mRows.invalidate();
+                return;
+            }
         }
     }
 
@@ -205,8 +270,13 @@ class RowAdapter extends RecyclerView.Adapter<RowAdapter.ViewHolder> implements
                     dataType = EXTRA_DATA;
                     break;
             }
+            ProjectData.Row row = getRow(position);
+            if (row == null) {
+                // The row no longer exists
+                return;
+            }
             for (OnRowClickListener listener : mOnClickListeners) {
-                listener.onRowDataClick(position, mRows.get(position), dataType);
+                listener.onRowDataClick(position, row, dataType);
             }
         }
     }
@@ -0,0 +1,158 @@
+package com.splitcriteria.timecard;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Timecard - Allows users to easily track time-based data for analysis.
+ * Copyright (C) 2017  Nicholas Johnson
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Timecard - Copyright (C) 2017  Nicholas Johnson
+ *
+ * This program comes with ABSOLUTELY NO WARRANTY; for details type `show w'.
+ * This is free software, and you are welcome to redistribute it
+ * under certain conditions; type `show c' for details.
+ *
+ * Holds a block of a project's rows in parallel arrays of primitives rather than as
+ * ProjectData.Row objects. Extra data is stored once per distinct value in a string
+ * pool. A ProjectData.Row (with its Calendars) is only created when it is requested.
+ */
+
+class RowBlock {
+
+    // The end time of a row which is still clocked in
+    static final long NO_END_TIME = Long.MIN_VALUE;
+    // The extra data reference of a row without extra data
+    private static final int NO_EXTRA_DATA = -1;
+
+    private int mSize;
+    private long[] mIds;
+    private long[] mStartMillis;
+    private long[] mEndMillis;
+    private int[] mExtraRefs;
+    private List<String> mStringPool = new ArrayList<>();
+    private Map<String, Integer> mStringRefs = new HashMap<>();
+
+    RowBlock(int capacity) {
+        capacity = Math.max(capacity, 1);
+        mIds = new long[capacity];
+        mStartMillis = new long[capacity];
+        mEndMillis = new long[capacity];
+        mExtraRefs = new int[capacity];
+    }
+
+    /**
+     * Appends a row to the block
+     *
+     * @param id            the row id
+     * @param startMillis   the start time in epoch milliseconds
+     * @param endMillis     the end time in epoch milliseconds, or NO_END_TIME
+     * @param extraData     the extra data, or null
+     */
+    void add(long id, long startMillis, long endMillis, String extraData) {
+        if (mSize == mIds.length) {
+            int capacity = mSize * 2;
+            mIds = Arrays.copyOf(mIds, capacity);
+            mStartMillis = Arrays.copyOf(mStartMillis, capacity);
+            mEndMillis = Arrays.copyOf(mEndMillis, capacity);
+            mExtraRefs = Arrays.copyOf(mExtraRefs, capacity);
+        }
+        set(mSize++, id, startMillis, endMillis, extraData);
+    }
+
+    private void set(int index, long id, long startMillis, long endMillis, String extraData) {
+        mIds[index] = id;
+        mStartMillis[index] = startMillis;
+        mEndMillis[index] = endMillis;
+        mExtraRefs[index] = getStringRef(extraData);
+    }
+
+    private int getStringRef(String value) {
+        if (value == null) {
+            return NO_EXTRA_DATA;
+        }
+        Integer ref = mStringRefs.get(value);
+        if (ref == null) {
+            ref = mStringPool.size();
+            mStringPool.add(value);
+            mStringRefs.put(value, ref);
+        }
+        return ref;
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    long getId(int index) {
+        return mIds[index];
+    }
+
+    long getStartMillis(int index) {
+        return mStartMillis[index];
+    }
+
+    /**
+     * @param index the index of a row in the block
+     * @return  the row's end time, or NO_END_TIME if the row is still clocked in
+     */
+    long getEndMillis(int index) {
+        return mEndMillis[index];
+    }
+
+    String getExtraData(int index) {
+        int ref = mExtraRefs[index];
+        return ref != NO_EXTRA_DATA ? mStringPool.get(ref) : null;
+    }
+
+    /**
+     * Creates a ProjectData.Row from a row in the block. Changes to the returned Row
+     * are not reflected in the block unless it is passed to setRow().
+     *
+     * @param index the index of a row in the block
+     * @return  a new Row
+     */
+    ProjectData.Row getRow(int index) {
+        ProjectData.Row row = new ProjectData.Row();
+        row.id = (int)mIds[index];
+        row.startTime = Calendar.getInstance(Locale.getDefault());
+        row.startTime.setTimeInMillis(mStartMillis[index]);
+        if (mEndMillis[index] != NO_END_TIME) {
+            row.endTime = Calendar.getInstance(Locale.getDefault());
+            row.endTime.setTimeInMillis(mEndMillis[index]);
+        } else {
+            row.endTime = null;
+        }
+        row.extraData = getExtraData(index);
+        return row;
+    }
+
+    /**
+     * Replaces a row in the block with the values of a ProjectData.Row
+     *
+     * @param index the index of a row in the block
+     * @param row   the new row values
+     */
+    void setRow(int index, ProjectData.Row row) {
+        set(index, row.id, row.startTime.getTimeInMillis(),
+            row.endTime != null ? row.endTime.getTimeInMillis() : NO_END_TIME,
+            row.extraData);
+    }
+}
@@ -0,0 +1,164 @@
+package com.splitcriteria.timecard;
+
+import android.content.Context;
+import android.util.LruCache;
+
+import java.lang.ref.WeakReference;
+
+/**
+ * Timecard - Allows users to easily track time-based data for analysis.
+ * Copyright (C) 2017  Nicholas Johnson
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Timecard - Copyright (C) 2017  Nicholas Johnson
+ *
+ * This program comes with ABSOLUTELY NO WARRANTY; for details type `show w'.
+ * This is free software, and you are welcome to redistribute it
+ * under certain conditions; type `show c' for details.
+ *
+ * Provides the rows of a project by position, loading them from ProjectData in pages
+ * of a fixed size as they are requested. Only a bounded number of pages are held in
+ * memory. Each page is found by its preceding row's (start, rowid) key, so loading a
+ * page takes the same time no matter how far into the project it is.
+ */
+
+class RowPager {
+
+    private static final int PAGE_SIZE = 50;
+    private static final int MAX_CACHED_PAGES = 8;
+
+    private WeakReference<Context> mContextRef;
+    private String mProjectName;
+    private int mCount;
+    private LruCache<Integer, RowBlock> mPages =
+            new LruCache<>(MAX_CACHED_PAGES);
+    // The (start, rowid) key of the last row of each page which has been loaded
+    private long[] mLastStartMillis;
+    private int[] mLastRowIds;
+    private boolean[] mHasLastKey;
+
+    RowPager(Context context, String projectName) {
+        mContextRef = new WeakReference<>(context);
+        mProjectName = projectName;
+        invalidate();
+    }
+
+    /**
+     * Discards all the loaded pages and re-reads the number of rows. This must be
+     * called after rows are added to or deleted from the project.
+     */
+    void invalidate() {
+        Context context = mContextRef.get();
+        if (context == null) {
+            throw new RuntimeException("Unable to load rows: no Context.");
+        }
+        ProjectData projectData = new ProjectData(context);
+        ProjectData.Statistics statistics = projectData.getStatistics(mProjectName);
+        projectData.close(context);
+        mCount = statistics != null ? statistics.count : 0;
+        mPages.evictAll();
+        int pageCount = (mCount + PAGE_SIZE - 1) / PAGE_SIZE;
+        mLastStartMillis = new long[pageCount];
+        mLastRowIds = new int[pageCount];
+        mHasLastKey = new boolean[pageCount];
+    }
+
+    /**
+     * @return  the number of rows in the project
+     */
+    int getCount() {
+        return mCount;
+    }
+
+    /**
+     * Returns the row at a position, loading its page if necessary. A new Row is
+     * created on each call, so changes must be saved back with setRow().
+     *
+     * @param position  the position of the row (the newest row is at position 0)
+     * @return  the Row, or null if there is no row at the position
+     */
+    ProjectData.Row getRow(int position) {
+        RowBlock rows = getPage(position);
+        int index = position % PAGE_SIZE;
+        return rows != null && index < rows.size() ? rows.getRow(index) : null;
+    }
+
+    /**
+     * Replaces the row at a position with an updated Row (e.g. after it has been
+     * updated in the database). If its start time changed, the row may have moved
+     * to another position, so every page is discarded and loaded again.
+     *
+     * @param position  the position of the row
+     * @param row       the updated Row
+     * @return  true if the row is still at the position, false if the pages were
+     *          discarded and every position must be read again
+     */
+    boolean setRow(int position, ProjectData.Row row) {
+        RowBlock rows = getPage(position);
+        int index = position % PAGE_SIZE;
+        if (rows == null || index >= rows.size()) {
+            return true;
+        }
+        if (rows.getStartMillis(index) != row.startTime.getTimeInMillis()) {
+            // The rows are ordered by start time, so the page keys no longer hold
+            invalidate();
+            return false;
+        }
+        rows.setRow(index, row);
+        return true;
+    }
+
+    private RowBlock getPage(int position) {
+        if (position < 0 || position >= mCount) {
+            return null;
+        }
+        int page = position / PAGE_SIZE;
+        RowBlock rows = mPages.get(page);
+        if (rows == null) {
+            rows = loadPage(page);
+            mPages.put(page, rows);
+        }
+        return rows;
+    }
+
+    private RowBlock loadPage(int page) {
+        Context context = mContextRef.get();
+        if (context == null) {
+            throw new RuntimeException("Unable to load rows: no Context.");
+        }
+        ProjectData projectData = new ProjectData(context);
+        RowBlock rows;
+        if (page == 0) {
+            rows = projectData.getRows(mProjectName, 0, PAGE_SIZE);
+        } else if (mHasLastKey[page - 1]) {
+            rows = projectData.getRowsAfter(mProjectName, mLastStartMillis[page - 1],
+                                            mLastRowIds[page - 1], PAGE_SIZE);
+        } else {
+            // The previous page has never been loaded (e.g. the user jumped ahead)
+            rows = projectData.getRows(mProjectName, page * PAGE_SIZE, PAGE_SIZE);
+        }
+        projectData.close(context);
+        if (rows == null) {
+            // The project has been deleted
+            rows = new RowBlock(0);
+        }
+        if (rows.size() > 0) {
+            int last = rows.size() - 1;
+            mLastStartMillis[page] = rows.getStartMillis(last);
+            mLastRowIds[page] = (int)rows.getId(last);
+            mHasLastKey[page] = true;
+        }
+        return rows;
+    }
+}
@@ -14,6 +14,7 @@ import android.preference.Preference;
 import android.preference.PreferenceFragment;
 import android.support.annotation.Nullable;
 import android.support.design.widget.Snackbar;
+import android.text.TextUtils;
 import android.widget.Toast;
 
 import java.util.List;
@@ -209,8 +210,10 @@ public class SettingsFragment extends PreferenceFragment implements
     }
 
     @Override
-    public void onRestored(boolean success, String errorMsg) {
-        String message = success ? getString(R.string.toast_restore_success) : errorMsg;
-        Toast.makeText(getActivity(), message, Toast.LENGTH_SHORT).show();
+    public void onRestored(boolean success, String message) {
+        if (success && TextUtils.isEmpty(message)) {
+            message = getString(R.string.toast_restore_success);
+        }
+        Toast.makeText(getActivity(), message, Toast.LENGTH_LONG).show();
     }
 }
\ No newline at end of file
@@ -0,0 +1,191 @@
+package com.splitcriteria.timecard;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.LruCache;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Timecard - Allows users to easily track time-based data for analysis.
+ * Copyright (C) 2017  Nicholas Johnson
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Timecard - Copyright (C) 2017  Nicholas Johnson
+ *
+ * This program comes with ABSOLUTELY NO WARRANTY; for details type `show w'.
+ * This is free software, and you are welcome to redistribute it
+ * under certain conditions; type `show c' for details.
+ *
+ * Computes the ExtendedMetadata (including the data summary) of projects on a pool of
+ * background threads, one per CPU core. Every project is independent, so many summaries
+ * are computed at once. The workers read through the shared connection of
+ * DatabaseHolder, which allows concurrent readers with write-ahead logging. Each result
+ * is delivered on the main thread as soon as it is ready. Computed results are kept in
+ * a bounded cache until the project's data version (see ProjectEvents) changes. The
+ * summaries are computed from, and cached per, a given database.
+ */
+
+class SummaryExecutor {
+
+    private static final int THREAD_COUNT =
+            Math.max(1, Runtime.getRuntime().availableProcessors());
+    private static final long KEEP_ALIVE_SECONDS = 30;
+    private static final int MAX_CACHED_SUMMARIES = 128;
+
+    interface OnSummaryListener {
+        /**
+         * Called on the main thread when a project's summary has been computed
+         *
+         * @param projectName       the project name
+         * @param extendedMetadata  the project's ExtendedMetadata, or null if the
+         *                          project no longer exists
+         */
+        void onSummary(String projectName, ProjectData.ExtendedMetadata extendedMetadata);
+    }
+
+    private static final ThreadFactory sThreadFactory = new ThreadFactory() {
+        private final AtomicInteger mCount = new AtomicInteger(1);
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    // Don't compete with the UI thread
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            }, "SummaryExecutor #" + mCount.getAndIncrement());
+        }
+    };
+
+    private static final ThreadPoolExecutor sExecutor;
+    static {
+        sExecutor = new ThreadPoolExecutor(
+                THREAD_COUNT, THREAD_COUNT, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), sThreadFactory);
+        // Don't keep idle threads around once the summaries are computed
+        sExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    private static final Handler sHandler = new Handler(Looper.getMainLooper());
+
+    private static class CachedSummary {
+        final long version;
+        final ProjectData.ExtendedMetadata extendedMetadata;
+
+        CachedSummary(long version, ProjectData.ExtendedMetadata extendedMetadata) {
+            this.version = version;
+            this.extendedMetadata = extendedMetadata;
+        }
+    }
+
+    // The most recently computed summaries, by database name and project name (see
+    // getCacheKey())
+    private static final LruCache<String, CachedSummary> sCache =
+            new LruCache<>(MAX_CACHED_SUMMARIES);
+
+    private static String getCacheKey(String databaseName, String projectName) {
+        // Database names are file names, so they can't contain a '/'
+        return databaseName + '/' + projectName;
+    }
+
+    /**
+     * Returns the cached ExtendedMetadata of a project, if it is still up to date
+     *
+     * @param databaseName  the name of the project's database
+     * @param projectName   the project name
+     * @return  the cached ExtendedMetadata, or null if it isn't cached or is out of date
+     */
+    static ProjectData.ExtendedMetadata getCached(String databaseName, String projectName) {
+        String key = getCacheKey(databaseName, projectName);
+        CachedSummary cachedSummary = sCache.get(key);
+        if (cachedSummary == null) {
+            return null;
+        } else if (cachedSummary.version !=
+                ProjectEvents.getVersion(databaseName, projectName)) {
+            sCache.remove(key);
+            return null;
+        }
+        return cachedSummary.extendedMetadata;
+    }
+
+    /**
+     * Caches the ExtendedMetadata of a project
+     *
+     * @param databaseName      the name of the project's database
+     * @param projectName       the project name
+     * @param version           the project's data version when the ExtendedMetadata
+     *                          was read
+     * @param extendedMetadata  the ExtendedMetadata
+     */
+    static void putCached(String databaseName, String projectName, long version,
+                          ProjectData.ExtendedMetadata extendedMetadata) {
+        if (version == ProjectEvents.getVersion(databaseName, projectName)) {
+            sCache.put(getCacheKey(databaseName, projectName),
+                       new CachedSummary(version, extendedMetadata));
+        }
+    }
+
+    /**
+     * Computes the ExtendedMetadata of a project in the background
+     *
+     * @param context       a Context
+     * @param databaseName  the name of the project's database
+     * @param projectName   the project name
+     * @param listener      called with the result if it still exists (it is held as a
+     *                      WeakReference)
+     * @return  a Future which can be used to cancel the computation
+     */
+    static Future<?> submit(Context context, final String databaseName,
+                            final String projectName, OnSummaryListener listener) {
+        final Context applicationContext = context.getApplicationContext();
+        final WeakReference<OnSummaryListener> listenerRef = new WeakReference<>(listener);
+        return sExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                if (listenerRef.get() == null) {
+                    return;
+                }
+                // Take the version before reading, so a concurrent change invalidates it
+                long version = ProjectEvents.getVersion(databaseName, projectName);
+                ProjectData projectData = new ProjectData(applicationContext, databaseName);
+                final ProjectData.ExtendedMetadata extendedMetadata =
+                        projectData.getProjectExtendedMetadata(projectName);
+                projectData.close(applicationContext);
+                if (extendedMetadata != null) {
+                    putCached(databaseName, projectName, version, extendedMetadata);
+                }
+                sHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        OnSummaryListener listener = listenerRef.get();
+                        if (listener != null) {
+                            listener.onSummary(projectName, extendedMetadata);
+                        }
+                    }
+                });
+            }
+        });
+    }
+}
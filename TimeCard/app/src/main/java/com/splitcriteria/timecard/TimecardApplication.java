@@ -0,0 +1,93 @@
+package com.splitcriteria.timecard;
+
+import android.app.Application;
+import android.os.AsyncTask;
+import android.preference.PreferenceManager;
+
+/**
+ * Timecard - Allows users to easily track time-based data for analysis.
+ * Copyright (C) 2017  Nicholas Johnson
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Timecard - Copyright (C) 2017  Nicholas Johnson
+ *
+ * This program comes with ABSOLUTELY NO WARRANTY; for details type `show w'.
+ * This is free software, and you are welcome to redistribute it
+ * under certain conditions; type `show c' for details.
+ *
+ * The Timecard Application, which keeps the notifications and the clock state snapshot
+ * up to date with the changes published through ProjectEvents for as long as the
+ * process lives, and empties the change log while backups are turned off.
+ */
+
+public class TimecardApplication extends Application implements
+        ProjectEvents.OnProjectChangedListener {
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        // ProjectEvents only holds a WeakReference, which the Application outlives
+        ProjectEvents.addListener(this);
+        // The snapshot may be out of date (e.g. if the process died mid-write). Until it's
+        // rebuilt, the clock states are read from the database instead.
+        rebuildClockState();
+        // Only backups read the change log, so don't let it grow while they're turned off
+        if (!PreferenceManager.getDefaultSharedPreferences(this).getBoolean(
+                getString(R.string.preferences_key_backup), false)) {
+            clearChangeLog();
+        }
+    }
+
+    /**
+     * Empties the change log in the background. The next backup is then a full backup.
+     */
+    private void clearChangeLog() {
+        BackupArchive.resetIncrementalBackup(this);
+        AsyncTask.execute(new Runnable() {
+            @Override
+            public void run() {
+                ProjectData projectData = new ProjectData(TimecardApplication.this);
+                projectData.pruneChanges(Long.MAX_VALUE);
+                projectData.close(TimecardApplication.this);
+            }
+        });
+    }
+
+    private void rebuildClockState() {
+        AsyncTask.execute(new Runnable() {
+            @Override
+            public void run() {
+                ProjectData projectData = new ProjectData(TimecardApplication.this);
+                projectData.rebuildClockState();
+                projectData.close(TimecardApplication.this);
+            }
+        });
+    }
+
+    @Override
+    public void onProjectChanged(ProjectEvents.Event event) {
+        // Only the app's own database has notifications and a clock state snapshot here
+        if (!getString(R.string.default_database_filename).equals(event.databaseName)) {
+            return;
+        }
+        switch (event.type) {
+            case ProjectEvents.PROJECT_DELETED:
+                ProjectReceiver.dismissAllNotifications(this, event.projectName);
+                break;
+            case ProjectEvents.DATABASE_REPLACED:
+                rebuildClockState();
+                break;
+        }
+    }
+}